@@ -1,14 +1,23 @@
 package com.lox;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /*
-    This is the AstPrinter class which prints the expression into an Abstract Syntax Tree.
-    As you can see it uses the Visitor pattern from the Expr and implements the interface Visitor.
-    Now see once the accept() function is called on that object it goes for each of the implementation
-    of each of those objects. So literally it saved the classes from bloating due to separate function
-    implementations.
+    Prints the AST, every statement and expression, into an Appendable (a Writer, a StringBuilder).
+    There are two modes:
+    - S-expressions, (operator operands...) like (* (- 123) (group 45.67)), one statement per
+      line and the statements of a body indented under it,
+    - compact JSON, an object per node with its kind, line, fields and children.
+    Both show the types TypeInference found for the expressions.
+    The output is written while the tree is walked, with an explicit stack instead of
+    recursion: a deep tree can't overflow the Java stack and nothing is built up in memory.
 */
-
-class AstPrinter implements Expr.Visitor<String> {
+class AstPrinter {
+    enum Mode { SEXPR, JSON }
 
     //Testing our little Abstract Tree Printer with our small Expression
     public static void main(String[] args)
@@ -25,58 +34,415 @@ class AstPrinter implements Expr.Visitor<String> {
         );
         System.out.println(new AstPrinter().print(expression)); // Prints out the expression like this (* (- 123) (group 45.67))
     }
+
+    private final Mode mode;
+    // the work still to do, the top is written next: a String as it is, a node by describing it
+    private Object[] items = new Object[64];
+    // the statement depth of each item, for the indentation
+    private int[] depths = new int[64];
+    private int size = 0;
+    // the node being described: its name, fields and children, reused for every node
+    private String head;
+    // written as it is in S-expressions, without parentheses
+    private boolean leaf;
+    private final List<String> fieldNames = new ArrayList<>();
+    private final List<Object> fieldValues = new ArrayList<>();
+    private final List<String> childNames = new ArrayList<>();
+    private final List<Object> children = new ArrayList<>();
+
+    AstPrinter() {
+        this(Mode.SEXPR);
+    }
+
+    AstPrinter(Mode mode) {
+        this.mode = mode;
+    }
+
+    // a single expression on one line, for messages
     String print(Expr expr) {
-        return expr.accept(this);
+        StringBuilder out = new StringBuilder();
+        try {
+            print(expr, out);
+        } catch (IOException err) {
+            throw new UncheckedIOException(err);
+        }
+        return out.toString();
+    }
+
+    void print(Expr expr, Appendable out) throws IOException {
+        push(expr, 0);
+        run(out);
+    }
+
+    // The program, in S-expressions a statement per line, in JSON an array of them.
+    void print(List<Stmt> statements, Appendable out) throws IOException {
+        if(mode == Mode.JSON) {
+            push("]\n", 0);
+            for (int i = statements.size() - 1; i >= 0; --i) {
+                push(statements.get(i), 0);
+                if(i > 0) push(",", 0);
+            }
+            push("[", 0);
+        } else {
+            for (int i = statements.size() - 1; i >= 0; --i) {
+                push("\n", 0);
+                push(statements.get(i), 0);
+            }
+        }
+        run(out);
+    }
+
+    private void push(Object item, int depth) {
+        if(size == items.length) {
+            items = Arrays.copyOf(items, size * 2);
+            depths = Arrays.copyOf(depths, size * 2);
+        }
+        items[size] = item;
+        depths[size] = depth;
+        size++;
+    }
+
+    private void run(Appendable out) throws IOException {
+        while (size > 0) {
+            size--;
+            Object item = items[size];
+            int depth = depths[size];
+            items[size] = null;
+            if(item instanceof String text) {
+                out.append(text);
+            } else if(item instanceof Expr expr) {
+                describe(expr);
+                write(out, expr.line, TypeInference.describe(expr.type), depth);
+            } else if(item instanceof Stmt stmt) {
+                describe(stmt);
+                write(out, stmt.line, null, depth);
+            } else {
+                out.append(mode == Mode.JSON ? "null" : "nil");
+            }
+        }
+    }
+
+    // Writes the start of the described node and pushes the rest of it, its children last.
+    private void write(Appendable out, int line, String type, int depth) throws IOException {
+        if(mode == Mode.JSON) {
+            writeJson(out, line, type, depth);
+        } else {
+            writeSexpr(out, type, depth);
+        }
+    }
+
+    private void writeSexpr(Appendable out, String type, int depth) throws IOException {
+        String suffix = type == null ? "" : ":" + type;
+        if(leaf) {
+            out.append(head).append(suffix);
+            return;
+        }
+        out.append('(').append(head);
+        for(Object value : fieldValues) {
+            out.append(' ').append(atom(value));
+        }
+        push(")" + suffix, depth);
+        for (int i = children.size() - 1; i >= 0; --i) {
+            Object child = children.get(i);
+            if(child instanceof Stmt[] statements) {
+                // a body, its statements on lines of their own
+                String indent = "\n" + "  ".repeat(depth + 1);
+                push(")", depth);
+                for (int j = statements.length - 1; j >= 0; --j) {
+                    push(statements[j], depth + 2);
+                    push(indent + "  ", depth);
+                }
+                push(indent + "(" + childNames.get(i), depth);
+            } else if(child instanceof Expr[] expressions) {
+                for (int j = expressions.length - 1; j >= 0; --j) {
+                    push(expressions[j], depth);
+                    push(" ", depth);
+                }
+            } else {
+                push(child, child instanceof Stmt ? depth + 1 : depth);
+                push(child instanceof Stmt ? "\n" + "  ".repeat(depth + 1) : " ", depth);
+            }
+        }
     }
 
-    @Override
-    public String visitAssignExpr(Expr.Assign expr) {
-        return "";
+    private void writeJson(Appendable out, int line, String type, int depth) throws IOException {
+        out.append("{\"node\":\"").append(head).append('"');
+        if(line >= 0) out.append(",\"line\":").append(String.valueOf(line));
+        if(type != null) out.append(",\"type\":\"").append(type).append('"');
+        for (int i = 0; i < fieldNames.size(); ++i) {
+            out.append(",\"").append(fieldNames.get(i)).append("\":").append(json(fieldValues.get(i)));
+        }
+        push("}", depth);
+        for (int i = children.size() - 1; i >= 0; --i) {
+            Object child = children.get(i);
+            if(child instanceof Object[] nodes) {
+                push("]", depth);
+                for (int j = nodes.length - 1; j >= 0; --j) {
+                    push(nodes[j], depth);
+                    if(j > 0) push(",", depth);
+                }
+                push(",\"" + childNames.get(i) + "\":[", depth);
+            } else {
+                push(child, depth);
+                push(",\"" + childNames.get(i) + "\":", depth);
+            }
+        }
     }
-    @Override
-    public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+
+    private static String atom(Object value) {
+        if(value == null) return "nil";
+        if(value instanceof Token[] tokens) {
+            StringBuilder list = new StringBuilder("(");
+            for(Token token : tokens) {
+                if(list.length() > 1) list.append(' ');
+                list.append(token.lexeme);
+            }
+            return list.append(')').toString();
+        }
+        return value.toString();
     }
 
-    @Override
-    public String visitCallExpr(Expr.Call expr) {
-        return "";
+    private static String json(Object value) {
+        if(value == null) return "null";
+        // JSON has no infinity or NaN, those are written as strings
+        if(value instanceof Double number && Double.isFinite(number)) return value.toString();
+        if(value instanceof Boolean || value instanceof Integer) return value.toString();
+        if(value instanceof Token[] tokens) {
+            StringBuilder list = new StringBuilder("[");
+            for(Token token : tokens) {
+                if(list.length() > 1) list.append(',');
+                list.append(json(token.lexeme));
+            }
+            return list.append(']').toString();
+        }
+        String text = value.toString();
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                    if(c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+                    else quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
     }
 
-    @Override
-    public String visitVariableExpr(Expr.Variable expr) {
-        return expr.name.lexeme;
+    // a node with operands, (sexpr fields... children...) in S-expressions
+    private void start(String sexpr, String json) {
+        head = mode == Mode.JSON ? json : sexpr;
+        leaf = false;
+        fieldNames.clear();
+        fieldValues.clear();
+        childNames.clear();
+        children.clear();
     }
-    @Override
-    public String visitGroupingExpr(Expr.Grouping expr) {
-        return parenthesize("group", expr.expression);
+
+    // an atom in S-expressions, a variable or a literal
+    private void leaf(String sexpr, String json) {
+        start(sexpr, json);
+        leaf = mode == Mode.SEXPR;
     }
 
-    @Override
-    public String visitLiteralExpr(Expr.Literal expr) {
-        if(expr.value == null)
-            return "nil";
-        return expr.value.toString();
+    // in S-expressions only the value is written
+    private void field(String name, Object value) {
+        fieldNames.add(name);
+        fieldValues.add(value);
     }
 
-    @Override
-    public String visitLogicalExpr(Expr.Logical expr) {
-        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+    private void child(String name, Object node) {
+        childNames.add(name);
+        children.add(node);
     }
 
-    @Override
-    public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, expr.right);
+    private void describe(Expr expr) {
+        switch (expr.kind) {
+            case Expr.ASSIGN: {
+                Expr.Assign assign = (Expr.Assign) expr;
+                start("= " + assign.name.lexeme, "Assign");
+                if(mode == Mode.JSON) field("name", assign.name.lexeme);
+                child("value", assign.value);
+                break;
+            }
+            case Expr.BINARY: {
+                Expr.Binary binary = (Expr.Binary) expr;
+                start(binary.operator.lexeme, "Binary");
+                if(mode == Mode.JSON) field("operator", binary.operator.lexeme);
+                child("left", binary.left);
+                child("right", binary.right);
+                break;
+            }
+            case Expr.CALL: {
+                Expr.Call call = (Expr.Call) expr;
+                start("call", "Call");
+                child("callee", call.callee);
+                child("arguments", call.arguments);
+                break;
+            }
+            case Expr.GET: {
+                Expr.Get get = (Expr.Get) expr;
+                start("." + get.name.lexeme, "Get");
+                if(mode == Mode.JSON) field("name", get.name.lexeme);
+                child("object", get.object);
+                break;
+            }
+            case Expr.GROUPING:
+                start("group", "Grouping");
+                child("expression", ((Expr.Grouping) expr).expression);
+                break;
+            case Expr.LITERAL: {
+                Object value = ((Expr.Literal) expr).value;
+                leaf(value == null ? "nil" : value.toString(), "Literal");
+                if(mode == Mode.JSON) field("value", value);
+                break;
+            }
+            case Expr.LOGICAL: {
+                Expr.Logical logical = (Expr.Logical) expr;
+                start(logical.operator.lexeme, "Logical");
+                if(mode == Mode.JSON) field("operator", logical.operator.lexeme);
+                child("left", logical.left);
+                child("right", logical.right);
+                break;
+            }
+            case Expr.SET: {
+                Expr.Set set = (Expr.Set) expr;
+                start("=." + set.name.lexeme, "Set");
+                if(mode == Mode.JSON) field("name", set.name.lexeme);
+                child("object", set.object);
+                child("value", set.value);
+                break;
+            }
+            case Expr.SUPER: {
+                Expr.Super superExpr = (Expr.Super) expr;
+                start("super", "Super");
+                field("method", superExpr.method.lexeme);
+                break;
+            }
+            case Expr.THIS:
+                leaf("this", "This");
+                break;
+            case Expr.UNARY: {
+                Expr.Unary unary = (Expr.Unary) expr;
+                start(unary.operator.lexeme, "Unary");
+                if(mode == Mode.JSON) field("operator", unary.operator.lexeme);
+                child("right", unary.right);
+                break;
+            }
+            case Expr.VARIABLE: {
+                Expr.Variable variable = (Expr.Variable) expr;
+                leaf(variable.name.lexeme, "Variable");
+                if(mode == Mode.JSON) field("name", variable.name.lexeme);
+                break;
+            }
+            case Expr.MEMO:
+                start("memo", "Memo");
+                child("expression", ((Expr.Memo) expr).expression);
+                break;
+            case Expr.INLINE: {
+                Expr.Inline inline = (Expr.Inline) expr;
+                start("inline", "Inline");
+                child("callee", inline.callee);
+                child("arguments", inline.arguments);
+                child("body", inline.body);
+                break;
+            }
+            case Expr.ARGUMENT: {
+                Expr.Argument argument = (Expr.Argument) expr;
+                leaf(argument.name.lexeme, "Argument");
+                if(mode == Mode.JSON) {
+                    field("name", argument.name.lexeme);
+                    field("index", argument.index);
+                }
+                break;
+            }
+        }
     }
 
-    private String parenthesize(String name, Expr... expressions) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("(").append(name);
-        for(Expr expr : expressions) {
-            sb.append(" ");
-            sb.append(expr.accept(this));
+    private void describe(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.IF: {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                start("if", "If");
+                child("condition", ifStmt.condition);
+                child("then", ifStmt.thenBranches);
+                if(ifStmt.elseBranches != null) child("else", ifStmt.elseBranches);
+                break;
+            }
+            case Stmt.WHILE: {
+                Stmt.While whileStmt = (Stmt.While) stmt;
+                start("while", "While");
+                child("condition", whileStmt.condition);
+                child("body", whileStmt.body);
+                break;
+            }
+            case Stmt.FOR: {
+                Stmt.For forStmt = (Stmt.For) stmt;
+                start("for", "For");
+                child("initializer", forStmt.initializer);
+                child("condition", forStmt.condition);
+                child("increment", forStmt.increment);
+                child("body", forStmt.body);
+                break;
+            }
+            case Stmt.BREAK:
+                start("break", "Break");
+                break;
+            case Stmt.CONTINUE:
+                start("continue", "Continue");
+                break;
+            case Stmt.BLOCK:
+                start("block", "Block");
+                child("statements", ((Stmt.Block) stmt).statements);
+                break;
+            case Stmt.CLASS: {
+                Stmt.Class classStmt = (Stmt.Class) stmt;
+                start("class " + classStmt.name.lexeme, "Class");
+                if(mode == Mode.JSON) field("name", classStmt.name.lexeme);
+                if(classStmt.superclass != null) child("superclass", classStmt.superclass);
+                child("methods", classStmt.methods);
+                break;
+            }
+            case Stmt.EXPRESSION:
+                start("expression", "Expression");
+                child("expression", ((Stmt.Expression) stmt).expression);
+                break;
+            case Stmt.FUNCTION: {
+                Stmt.Function function = (Stmt.Function) stmt;
+                start("fun " + function.name.lexeme, "Function");
+                if(mode == Mode.JSON) field("name", function.name.lexeme);
+                field("params", function.params);
+                child("body", function.body);
+                break;
+            }
+            case Stmt.PRINT:
+                start("print", "Print");
+                child("expression", ((Stmt.Print) stmt).expression);
+                break;
+            case Stmt.RETURN: {
+                Stmt.Return returnStmt = (Stmt.Return) stmt;
+                start("return", "Return");
+                if(returnStmt.value != null) child("value", returnStmt.value);
+                break;
+            }
+            case Stmt.VAR: {
+                Stmt.Var var = (Stmt.Var) stmt;
+                start("var " + var.name.lexeme, "Var");
+                if(mode == Mode.JSON) field("name", var.name.lexeme);
+                child("initializer", var.initializer);
+                break;
+            }
+            case Stmt.REASSIGN: {
+                Stmt.Reassign reassign = (Stmt.Reassign) stmt;
+                start("reassign " + reassign.name.lexeme, "Reassign");
+                if(mode == Mode.JSON) field("name", reassign.name.lexeme);
+                child("value", reassign.reInitializer);
+                break;
+            }
         }
-        sb.append(")");
-        return sb.toString();
     }
 }
@@ -0,0 +1,11 @@
+package com.lox;
+
+// A variable shared between its scope and the closures that captured it, because it is
+// assigned after it was captured (or captured before it got its value).
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
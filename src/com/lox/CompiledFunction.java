@@ -0,0 +1,614 @@
+package com.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    A hot Lox function compiled by the FunctionCompiler into a tree of specialised nodes.
+    The locals live in an Object[] frame, at slots found at compile time, instead of in the
+    HashMap of an Environment. Names that are no locals are still looked up in the closure.
+    Arithmetic and comparisons speculate that their operands are numbers and work on primitive
+    doubles. When an operand turns out to be something else the function is de-optimised:
+    the expression is evaluated again on the generic path (it only reads variables, so that
+    can't be observed), the rest of the call runs generic and the next calls are interpreted.
+*/
+final class CompiledFunction {
+    // how a statement completed
+    static final int NORMAL = 0;
+    static final int RETURN = 1;
+    static final int BREAK = 2;
+    static final int CONTINUE = 3;
+
+    final Stmt.Function declaration;
+    // set by the FunctionCompiler once the body is compiled
+    int slots;
+    Statement[] body;
+    boolean deoptimized = false;
+
+    CompiledFunction(Stmt.Function declaration) {
+        this.declaration = declaration;
+    }
+
+    Object call(Interpreter interpreter, Environment closure, List<Object> arguments) {
+        Frame frame = new Frame(interpreter, closure, new Object[slots]);
+        for (int i = 0; i < arguments.size(); ++i) {
+            frame.locals[i] = arguments.get(i);
+        }
+        MemoryBudget memory = interpreter.memory;
+        if(memory.maxBytes == 0) return run(frame);
+        // with a memory cap the frame is charged like the Environment of an interpreted call,
+        // the stores charge what their values add, and it is all given back at the return
+        memory.charge(frameBytes(frame));
+        try {
+            return run(frame);
+        } finally {
+            memory.charge(-frameBytes(frame));
+        }
+    }
+
+    private Object run(Frame frame) {
+        if(run(body, frame) == RETURN) {
+            return frame.returned;
+        }
+        return null;
+    }
+
+    private static long frameBytes(Frame frame) {
+        long bytes = MemoryBudget.ENVIRONMENT_BYTES + frame.locals.length * MemoryBudget.BINDING_BYTES;
+        for(Object local : frame.locals) {
+            bytes += MemoryBudget.sizeOf(local);
+        }
+        return bytes;
+    }
+
+    void deoptimize() {
+        deoptimized = true;
+        declaration.compiled = null;
+        declaration.interpretOnly = true;
+    }
+
+    // runs statements until one of them returns, breaks or continues
+    static int run(Statement[] statements, Frame frame) {
+        for(Statement statement : statements) {
+            int completion = statement.execute(frame);
+            if(completion != NORMAL) return completion;
+        }
+        return NORMAL;
+    }
+
+    static final class Frame {
+        final Interpreter interpreter;
+        final Environment closure;
+        final Object[] locals;
+        Object returned;
+
+        Frame(Interpreter interpreter, Environment closure, Object[] locals) {
+            this.interpreter = interpreter;
+            this.closure = closure;
+            this.locals = locals;
+        }
+    }
+
+    // thrown by a speculating node when an operand is not a number
+    static final class TypeGuard extends RuntimeException {
+        static final TypeGuard INSTANCE = new TypeGuard();
+        private TypeGuard() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Statements return how they completed, after a RETURN the value is in the frame.
+    abstract static class Statement {
+        abstract int execute(Frame frame);
+    }
+
+    abstract static class Node {
+        abstract Object execute(Frame frame);
+    }
+
+    // the primitive side of a speculated expression
+    abstract static class NumberNode {
+        abstract double executeDouble(Frame frame);
+    }
+
+    static final class Sequence extends Statement {
+        final Statement[] statements;
+        Sequence(Statement[] statements) {
+            this.statements = statements;
+        }
+        @Override
+        int execute(Frame frame) {
+            return run(statements, frame);
+        }
+    }
+
+    static final class ExpressionStatement extends Statement {
+        final Node expression;
+        ExpressionStatement(Node expression) {
+            this.expression = expression;
+        }
+        @Override
+        int execute(Frame frame) {
+            expression.execute(frame);
+            return NORMAL;
+        }
+    }
+
+    static final class PrintStatement extends Statement {
+        final Node expression;
+        PrintStatement(Node expression) {
+            this.expression = expression;
+        }
+        @Override
+        int execute(Frame frame) {
+            Object value = expression.execute(frame);
+            frame.interpreter.out.println(frame.interpreter.stringify(value));
+            return NORMAL;
+        }
+    }
+
+    static final class ReturnStatement extends Statement {
+        final Node value;
+        ReturnStatement(Node value) {
+            this.value = value;
+        }
+        @Override
+        int execute(Frame frame) {
+            frame.returned = value == null ? null : value.execute(frame);
+            return RETURN;
+        }
+    }
+
+    // break and continue
+    static final class JumpStatement extends Statement {
+        final int completion;
+        JumpStatement(int completion) {
+            this.completion = completion;
+        }
+        @Override
+        int execute(Frame frame) {
+            return completion;
+        }
+    }
+
+    static final class IfStatement extends Statement {
+        final Node condition;
+        final Statement[] thenBranch;
+        final Statement[] elseBranch;
+        IfStatement(Node condition, Statement[] thenBranch, Statement[] elseBranch) {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+        @Override
+        int execute(Frame frame) {
+            if(frame.interpreter.isTruthy(condition.execute(frame))) {
+                return run(thenBranch, frame);
+            } else if(elseBranch != null) {
+                return run(elseBranch, frame);
+            }
+            return NORMAL;
+        }
+    }
+
+    // while and for loops, a while loop has no increment
+    static final class LoopStatement extends Statement {
+        final Token keyword;
+        final Node condition;
+        final Statement[] body;
+        final Node increment;
+        LoopStatement(Token keyword, Node condition, Statement[] body, Node increment) {
+            this.keyword = keyword;
+            this.condition = condition;
+            this.body = body;
+            this.increment = increment;
+        }
+        @Override
+        int execute(Frame frame) {
+            Interpreter interpreter = frame.interpreter;
+            while(interpreter.isTruthy(condition.execute(frame))) {
+                interpreter.budget.step(keyword);
+                int completion = run(body, frame);
+                if(completion == RETURN) return RETURN;
+                if(completion == BREAK) break;
+                if(increment != null) increment.execute(frame);
+            }
+            return NORMAL;
+        }
+    }
+
+    static final class Constant extends Node {
+        final Object value;
+        Constant(Object value) {
+            this.value = value;
+        }
+        @Override
+        Object execute(Frame frame) {
+            return value;
+        }
+    }
+
+    static final class LocalRead extends Node {
+        final int slot;
+        LocalRead(int slot) {
+            this.slot = slot;
+        }
+        @Override
+        Object execute(Frame frame) {
+            return frame.locals[slot];
+        }
+    }
+
+    static final class OuterRead extends Node {
+        final Token name;
+        OuterRead(Token name) {
+            this.name = name;
+        }
+        @Override
+        Object execute(Frame frame) {
+            return frame.closure.get(name);
+        }
+    }
+
+    static final class GlobalRead extends Node {
+        final int slot;
+        final Token name;
+        GlobalRead(int slot, Token name) {
+            this.slot = slot;
+            this.name = name;
+        }
+        @Override
+        Object execute(Frame frame) {
+            return frame.interpreter.globalTable.get(slot, name);
+        }
+    }
+
+    static final class LocalStore extends Node {
+        final int slot;
+        final Token name;
+        final Node value;
+        LocalStore(int slot, Token name, Node value) {
+            this.slot = slot;
+            this.name = name;
+            this.value = value;
+        }
+        @Override
+        Object execute(Frame frame) {
+            Object result = value.execute(frame);
+            MemoryBudget memory = frame.interpreter.memory;
+            if(memory.maxBytes > 0) {
+                memory.allocate(MemoryBudget.sizeOf(result) - MemoryBudget.sizeOf(frame.locals[slot]), name);
+            }
+            frame.locals[slot] = result;
+            return result;
+        }
+    }
+
+    static final class OuterStore extends Node {
+        final Token name;
+        final Node value;
+        OuterStore(Token name, Node value) {
+            this.name = name;
+            this.value = value;
+        }
+        @Override
+        Object execute(Frame frame) {
+            Object result = value.execute(frame);
+            frame.closure.assign(name, result);
+            return result;
+        }
+    }
+
+    static final class GlobalStore extends Node {
+        final int slot;
+        final Token name;
+        final Node value;
+        GlobalStore(int slot, Token name, Node value) {
+            this.slot = slot;
+            this.name = name;
+            this.value = value;
+        }
+        @Override
+        Object execute(Frame frame) {
+            Object result = value.execute(frame);
+            frame.interpreter.globalTable.assign(slot, name, result);
+            return result;
+        }
+    }
+
+    static final class Logical extends Node {
+        final Token operator;
+        final Node left;
+        final Node right;
+        Logical(Token operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+        @Override
+        Object execute(Frame frame) {
+            Object value = left.execute(frame);
+            if(operator.type == TokenType.OR) {
+                if(frame.interpreter.isTruthy(value)) return value;
+            } else {
+                if(!frame.interpreter.isTruthy(value)) return value;
+            }
+            return right.execute(frame);
+        }
+    }
+
+    static final class Unary extends Node {
+        final Token operator;
+        final Node right;
+        Unary(Token operator, Node right) {
+            this.operator = operator;
+            this.right = right;
+        }
+        @Override
+        Object execute(Frame frame) {
+            return frame.interpreter.unary(operator, right.execute(frame));
+        }
+    }
+
+    static final class Binary extends Node {
+        final Token operator;
+        final Node left;
+        final Node right;
+        Binary(Token operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+        @Override
+        Object execute(Frame frame) {
+            Object l = left.execute(frame);
+            Object r = right.execute(frame);
+            return frame.interpreter.binary(operator, l, r);
+        }
+    }
+
+    static final class Call extends Node {
+        final Node callee;
+        final Node[] arguments;
+        final Token paren;
+        Call(Node callee, Node[] arguments, Token paren) {
+            this.callee = callee;
+            this.arguments = arguments;
+            this.paren = paren;
+        }
+        @Override
+        Object execute(Frame frame) {
+            Object function = callee.execute(frame);
+            if(function instanceof NativeFunction nativeFunction && arguments.length <= NativeFunction.MAX_DIRECT) {
+                int count = arguments.length;
+                Object a = count > 0 ? arguments[0].execute(frame) : null;
+                Object b = count > 1 ? arguments[1].execute(frame) : null;
+                Object c = count > 2 ? arguments[2].execute(frame) : null;
+                return frame.interpreter.callNative(nativeFunction, paren, count, a, b, c);
+            }
+            List<Object> args = new ArrayList<>(arguments.length);
+            for(Node argument : arguments) {
+                args.add(argument.execute(frame));
+            }
+            return frame.interpreter.call(function, args, paren);
+        }
+    }
+
+    // property access shares the inline caches of the tree with the Interpreter
+    static final class GetProperty extends Node {
+        final Expr.Get site;
+        final Node object;
+        GetProperty(Expr.Get site, Node object) {
+            this.site = site;
+            this.object = object;
+        }
+        @Override
+        Object execute(Frame frame) {
+            return frame.interpreter.getProperty(object.execute(frame), site);
+        }
+    }
+
+    static final class SetProperty extends Node {
+        final Expr.Set site;
+        final Node object;
+        final Node value;
+        SetProperty(Expr.Set site, Node object, Node value) {
+            this.site = site;
+            this.object = object;
+            this.value = value;
+        }
+        @Override
+        Object execute(Frame frame) {
+            LoxInstance instance = frame.interpreter.instanceToSet(object.execute(frame), site);
+            Object result = value.execute(frame);
+            frame.interpreter.setProperty(instance, site, result);
+            return result;
+        }
+    }
+
+    static final class SuperMethod extends Node {
+        final Expr.Super site;
+        SuperMethod(Expr.Super site) {
+            this.site = site;
+        }
+        @Override
+        Object execute(Frame frame) {
+            return frame.interpreter.superMethod(frame.closure, site);
+        }
+    }
+
+    // arithmetic on doubles, falls back to the generic node once the guard failed
+    static final class Speculated extends Node {
+        final CompiledFunction owner;
+        final NumberNode fast;
+        final Node generic;
+        Speculated(CompiledFunction owner, NumberNode fast, Node generic) {
+            this.owner = owner;
+            this.fast = fast;
+            this.generic = generic;
+        }
+        @Override
+        Object execute(Frame frame) {
+            if(!owner.deoptimized) {
+                try {
+                    return fast.executeDouble(frame);
+                } catch (TypeGuard guard) {
+                    owner.deoptimize();
+                }
+            }
+            return generic.execute(frame);
+        }
+    }
+
+    // comparison of two doubles, falls back to the generic node once the guard failed
+    static final class SpeculatedCompare extends Node {
+        final CompiledFunction owner;
+        final TokenType operator;
+        final NumberNode left;
+        final NumberNode right;
+        final Node generic;
+        SpeculatedCompare(CompiledFunction owner, TokenType operator, NumberNode left, NumberNode right, Node generic) {
+            this.owner = owner;
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.generic = generic;
+        }
+        @Override
+        Object execute(Frame frame) {
+            if(!owner.deoptimized) {
+                try {
+                    double l = left.executeDouble(frame);
+                    double r = right.executeDouble(frame);
+                    switch (operator) {
+                        case TokenType.GREATER: return l > r;
+                        case TokenType.GREATER_EQUAL: return l >= r;
+                        case TokenType.LESS: return l < r;
+                        default: return l <= r;
+                    }
+                } catch (TypeGuard guard) {
+                    owner.deoptimize();
+                }
+            }
+            return generic.execute(frame);
+        }
+    }
+
+    static final class NumberConstant extends NumberNode {
+        final double value;
+        NumberConstant(double value) {
+            this.value = value;
+        }
+        @Override
+        double executeDouble(Frame frame) {
+            return value;
+        }
+    }
+
+    static final class NumberLocal extends NumberNode {
+        final int slot;
+        NumberLocal(int slot) {
+            this.slot = slot;
+        }
+        @Override
+        double executeDouble(Frame frame) {
+            if(frame.locals[slot] instanceof Double value) return value;
+            throw TypeGuard.INSTANCE;
+        }
+    }
+
+    static final class NumberOuter extends NumberNode {
+        final Token name;
+        NumberOuter(Token name) {
+            this.name = name;
+        }
+        @Override
+        double executeDouble(Frame frame) {
+            if(frame.closure.get(name) instanceof Double value) return value;
+            throw TypeGuard.INSTANCE;
+        }
+    }
+
+    static final class NumberGlobal extends NumberNode {
+        final int slot;
+        final Token name;
+        NumberGlobal(int slot, Token name) {
+            this.slot = slot;
+            this.name = name;
+        }
+        @Override
+        double executeDouble(Frame frame) {
+            if(frame.interpreter.globalTable.get(slot, name) instanceof Double value) return value;
+            throw TypeGuard.INSTANCE;
+        }
+    }
+
+    static final class Negate extends NumberNode {
+        final NumberNode right;
+        Negate(NumberNode right) {
+            this.right = right;
+        }
+        @Override
+        double executeDouble(Frame frame) {
+            return -right.executeDouble(frame);
+        }
+    }
+
+    static final class Add extends NumberNode {
+        final NumberNode left;
+        final NumberNode right;
+        Add(NumberNode left, NumberNode right) {
+            this.left = left;
+            this.right = right;
+        }
+        @Override
+        double executeDouble(Frame frame) {
+            return left.executeDouble(frame) + right.executeDouble(frame);
+        }
+    }
+
+    static final class Subtract extends NumberNode {
+        final NumberNode left;
+        final NumberNode right;
+        Subtract(NumberNode left, NumberNode right) {
+            this.left = left;
+            this.right = right;
+        }
+        @Override
+        double executeDouble(Frame frame) {
+            return left.executeDouble(frame) - right.executeDouble(frame);
+        }
+    }
+
+    static final class Multiply extends NumberNode {
+        final NumberNode left;
+        final NumberNode right;
+        Multiply(NumberNode left, NumberNode right) {
+            this.left = left;
+            this.right = right;
+        }
+        @Override
+        double executeDouble(Frame frame) {
+            return left.executeDouble(frame) * right.executeDouble(frame);
+        }
+    }
+
+    static final class Divide extends NumberNode {
+        final Token operator;
+        final NumberNode left;
+        final NumberNode right;
+        Divide(Token operator, NumberNode left, NumberNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+        @Override
+        double executeDouble(Frame frame) {
+            double l = left.executeDouble(frame);
+            double r = right.executeDouble(frame);
+            if(r == 0)
+                throw new RuntimeError(operator, "cannot divide by zero");
+            return l / r;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.lox;
+
+// The natives Lox always had.
+final class CoreModule {
+    private CoreModule() {}
+
+    // seconds since the epoch, with the milliseconds as fraction
+    @LoxNative("clock")
+    static double clock() {
+        return System.currentTimeMillis() / 1000.0;
+    }
+}
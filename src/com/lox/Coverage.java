@@ -0,0 +1,124 @@
+package com.lox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+    Line and branch coverage of a run (--coverage=<file>), written as LCOV for genhtml and
+    the other tools that read it.
+    Every statement of the prepared program gets a number before it runs, its bit in a BitSet:
+    the Interpreter sets the bit when it executes the statement, nothing is looked up.
+    If, while and for statements have two branch bits next to that: the then and the else
+    branch, the body of a loop and the condition ending it.
+    A line is covered when a statement on it ran. The JIT and the optimisations stay off:
+    compiled code and inlined calls don't go through the statements of the functions.
+*/
+final class Coverage {
+    // the numbered statements, by number
+    private final List<Stmt> statements = new ArrayList<>();
+    private final BitSet ran = new BitSet();
+    private final BitSet branches = new BitSet();
+
+    // numbers the statements that have no number yet, function bodies included
+    void number(List<Stmt> program) {
+        for(Stmt statement : program) {
+            number(statement);
+        }
+    }
+
+    private void number(Stmt[] statements) {
+        for(Stmt statement : statements) {
+            number(statement);
+        }
+    }
+
+    private void number(Stmt stmt) {
+        if(stmt.coverageIndex >= 0) return;
+        stmt.coverageIndex = statements.size();
+        statements.add(stmt);
+        switch (stmt.kind) {
+            case Stmt.IF: {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                number(ifStmt.thenBranches);
+                if(ifStmt.elseBranches != null) number(ifStmt.elseBranches);
+                break;
+            }
+            case Stmt.WHILE:
+                number(((Stmt.While) stmt).body);
+                break;
+            case Stmt.FOR: {
+                Stmt.For forStmt = (Stmt.For) stmt;
+                if(forStmt.initializer != null) number(forStmt.initializer);
+                number(forStmt.body);
+                break;
+            }
+            case Stmt.BLOCK:
+                number(((Stmt.Block) stmt).statements);
+                break;
+            case Stmt.CLASS:
+                for(Stmt.Function method : ((Stmt.Class) stmt).methods) {
+                    number(method);
+                }
+                break;
+            case Stmt.FUNCTION:
+                number(((Stmt.Function) stmt).body);
+                break;
+        }
+    }
+
+    void ran(Stmt stmt) {
+        ran.set(stmt.coverageIndex);
+    }
+
+    // the first branch is the then branch or another iteration of a loop
+    void branch(Stmt stmt, boolean first) {
+        branches.set(2 * stmt.coverageIndex + (first ? 0 : 1));
+    }
+
+    /*
+        One LCOV record for the source file: DA per line with a statement, hit count 1 or 0
+        (a bit doesn't count), BRDA per branch of the if and loop statements, '-' when the
+        statement itself never ran, and the totals.
+    */
+    void write(Path output, String sourceFile) throws IOException {
+        Map<Integer, Boolean> lines = new TreeMap<>();
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(output, StandardCharsets.UTF_8))) {
+            out.println("TN:");
+            out.println("SF:" + sourceFile);
+            int found = 0;
+            int hit = 0;
+            for (int i = 0; i < statements.size(); ++i) {
+                Stmt stmt = statements.get(i);
+                if(stmt.line < 0) continue;
+                lines.merge(stmt.line, ran.get(i), Boolean::logicalOr);
+                if(stmt.kind != Stmt.IF && stmt.kind != Stmt.WHILE && stmt.kind != Stmt.FOR) continue;
+                for (int branch = 0; branch < 2; ++branch) {
+                    boolean taken = branches.get(2 * i + branch);
+                    out.println("BRDA:" + stmt.line + "," + i + "," + branch + ","
+                            + (ran.get(i) ? (taken ? "1" : "0") : "-"));
+                    found++;
+                    if(taken) hit++;
+                }
+            }
+            out.println("BRF:" + found);
+            out.println("BRH:" + hit);
+            int linesHit = 0;
+            for(Map.Entry<Integer, Boolean> line : lines.entrySet()) {
+                out.println("DA:" + line.getKey() + "," + (line.getValue() ? 1 : 0));
+                if(line.getValue()) linesHit++;
+            }
+            out.println("LF:" + lines.size());
+            out.println("LH:" + linesHit);
+            out.println("end_of_record");
+            if(out.checkError()) throw new IOException("Could not write " + output);
+        }
+    }
+}
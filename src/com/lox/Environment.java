@@ -3,31 +3,73 @@ package com.lox;
 import java.util.HashMap;
 import java.util.Map;
 
-// This class maintains variable declarations, values and scopes
+// This class maintains variable declarations, values and scopes.
+// A binding holds the value itself, or a Cell when closures share the variable.
 public class Environment {
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // The first binding is kept in two fields, most scopes (a loop variable, a call with one
+    // parameter) never need the map, which holds the bindings after the first one.
+    private String firstName = null;
+    private Object firstValue = null;
+    private Map<String, Object> values = null;
+    private final MemoryBudget memory;
+    // bytes charged to the memory budget for this scope and the values bound in it
+    private long bytes = MemoryBudget.ENVIRONMENT_BYTES;
+    // set once a closure holds on to this scope, it then outlives its block
+    private boolean captured = false;
+    // the globals, only the root scope has them and keeps no bindings itself
+    private final GlobalTable table;
 
-    Environment() {
+    Environment(GlobalTable table) {
         this.enclosing = null;
+        this.memory = table.memory;
+        this.table = table;
+        memory.charge(bytes);
     }
     Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        this.memory = enclosing.memory;
+        this.table = null;
+        memory.charge(bytes);
     }
     void define(Token name, Object value)
     {
-        if(values.containsKey(name.lexeme))
+        if(table != null) {
+            table.define(name, value);
+            return;
+        }
+        String key = name.lexeme;
+        if(key.equals(firstName) || (values != null && values.containsKey(key)))
             throw new RuntimeError(name,"Variable " + "'" + name.lexeme + "'"+" already defined");
 
-        values.put(name.lexeme, value);
+        if(firstName == null) {
+            firstName = key;
+            firstValue = value;
+        } else {
+            if(values == null) values = new HashMap<>();
+            values.put(key, value);
+        }
+        account(MemoryBudget.BINDING_BYTES + MemoryBudget.sizeOf(value), name);
     }
     void assign(Token name, Object value)
     {
-        if (values.containsKey(name.lexeme))
-        {
-            values.put(name.lexeme, value);
+        if(table != null) {
+            table.assign(name, value);
+            return;
+        }
+        String key = name.lexeme;
+        if(key.equals(firstName)) {
+            firstValue = store(name, firstValue, value);
             return;
         }
+        if(values != null) {
+            // one lookup for the common case, containsKey only tells a nil apart from no binding
+            Object previous = values.get(key);
+            if (previous != null || values.containsKey(key)) {
+                values.put(key, store(name, previous, value));
+                return;
+            }
+        }
         if(enclosing != null)
         {
             enclosing.assign(name, value);
@@ -35,14 +77,56 @@ public class Environment {
         }
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
+    // what the binding holds after assigning value to it, a Cell stays and takes the value
+    private Object store(Token name, Object previous, Object value)
+    {
+        if(previous instanceof Cell cell) {
+            account(MemoryBudget.sizeOf(value) - MemoryBudget.sizeOf(cell.value), name);
+            cell.value = value;
+            return cell;
+        }
+        account(MemoryBudget.sizeOf(value) - MemoryBudget.sizeOf(previous), name);
+        return value;
+    }
     Object get(Token name)
     {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        Object value = binding(name);
+        if (value instanceof Cell cell) return cell.value;
+        return value;
+    }
+    // the value or the Cell bound to the name, what a closure copies when it captures it
+    Object binding(Token name)
+    {
+        if(table != null) return table.get(name);
+        String key = name.lexeme;
+        if(key.equals(firstName)) return firstValue;
+        if(values != null) {
+            Object value = values.get(key);
+            if (value != null || values.containsKey(key)) {
+                return value;
+            }
         }
         if (enclosing != null) {
-            return enclosing.get(name);
+            return enclosing.binding(name);
         }
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
+
+    private void account(long bytes, Token at)
+    {
+        this.bytes += bytes;
+        memory.allocate(bytes, at);
+    }
+    // marks this scope and the ones around it as kept alive by a closure
+    void capture()
+    {
+        for(Environment env = this; env != null && !env.captured; env = env.enclosing)
+            env.captured = true;
+    }
+    // the scope ended, gives its bytes back unless a closure still holds on to it
+    void release()
+    {
+        if(!captured)
+            memory.charge(-bytes);
+    }
 }
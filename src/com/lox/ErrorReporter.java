@@ -0,0 +1,113 @@
+package com.lox;
+
+import java.io.PrintStream;
+
+// Collects the errors of one run: compile errors from the Scanner/Parser and runtime errors
+// from the Interpreter. Every run owns its reporter so runs in the same JVM don't mix up.
+// Compile errors are bounded, a broken source can't flood the output with them:
+// - an error on the same line as the one before is a cascade of it and isn't shown,
+// - after maxErrors shown errors the rest is only counted and the Parser gives up,
+// - the messages are batched and written by flush(), with a count of what was left out.
+class ErrorReporter {
+    static final int DEFAULT_MAX_ERRORS = 50;
+    // a batch bigger than this is written right away
+    private static final int BATCH_CHARS = 8192;
+
+    final PrintStream err;
+    final int maxErrors;
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+    private final StringBuilder batch = new StringBuilder();
+    private int shown = 0;
+    private int suppressed = 0;
+    private int lastLine = -1;
+    // the Parser gave up with source left
+    private boolean stopped = false;
+
+    ErrorReporter(PrintStream err) {
+        this(err, DEFAULT_MAX_ERRORS);
+    }
+
+    ErrorReporter(PrintStream err, int maxErrors) {
+        this.err = err;
+        this.maxErrors = maxErrors;
+    }
+
+    void error(int line, String message)
+    {
+        report(line, " ", message);
+    }
+
+    void error(Token token, String message)
+    {
+        if(token.type == TokenType.EOF){
+            report(token.line, "at end"+" ", message);
+        }
+        else {
+            report(token.line, "at '" + token.lexeme + "'"+" ", message);
+        }
+    }
+
+    void runtimeError(RuntimeError err) {
+        batch.append("[Line ").append(err.token.line).append("]\n").append(err.getMessage()).append('\n');
+        hadRuntimeError = true;
+        flush();
+    }
+
+    private void report(int line, String where, String message)
+    {
+        hadError = true;
+        if(line == lastLine || shown >= maxErrors) {
+            suppressed++;
+            return;
+        }
+        lastLine = line;
+        shown++;
+        batch.append("[line ").append(line).append("] Error ").append(where).append(": ").append(message).append('\n');
+        if(batch.length() > BATCH_CHARS) write();
+    }
+
+    // true once maxErrors errors were shown, there is no point in looking for more
+    boolean gaveUp() {
+        return shown >= maxErrors;
+    }
+
+    // called by the Parser when it stops before the end of the source because of gaveUp()
+    void stopped() {
+        stopped = true;
+    }
+
+    // writes the errors collected so far
+    void flush() {
+        if(stopped || suppressed > 0 && gaveUp()) {
+            batch.append("Too many errors, gave up after ").append(maxErrors).append(".\n");
+        } else if(suppressed > 0) {
+            batch.append(suppressed).append(suppressed == 1 ? " more error" : " more errors").append(" not shown.\n");
+        }
+        suppressed = 0;
+        stopped = false;
+        write();
+    }
+
+    private void write() {
+        if(batch.isEmpty()) return;
+        err.print(batch);
+        err.flush();
+        batch.setLength(0);
+    }
+
+    // forgets the compile errors, for the next entry of the REPL
+    void clearErrors() {
+        flush();
+        hadError = false;
+        shown = 0;
+        lastLine = -1;
+    }
+
+    // exit code of the run, 65 for compile errors and 70 for runtime errors
+    int exitCode() {
+        if(hadError) return 65;
+        if(hadRuntimeError) return 70;
+        return 0;
+    }
+}
@@ -0,0 +1,82 @@
+package com.lox;
+
+/*
+    Limits of one run of the Interpreter: number of steps, wall time and call depth.
+    A step is one loop iteration or one function call, so a runaway script always passes
+    through step() while the nodes in between are not checked at all.
+    step() only increments and compares, the clock and the interrupt flag of the thread
+    are looked at every CLOCK_INTERVAL steps.
+    A limit of 0 means no limit.
+*/
+class ExecutionBudget {
+    private static final long CLOCK_INTERVAL = 1024;
+
+    final long maxSteps;
+    final long maxMillis;
+    final int maxCallDepth;
+
+    private long steps;
+    // steps value at which slowCheck() has to run next
+    private long nextCheck;
+    private long deadline;
+    private int callDepth;
+
+    ExecutionBudget(long maxSteps, long maxMillis, int maxCallDepth) {
+        this.maxSteps = maxSteps;
+        this.maxMillis = maxMillis;
+        this.maxCallDepth = maxCallDepth;
+    }
+
+    static ExecutionBudget unlimited() {
+        return new ExecutionBudget(0, 0, 0);
+    }
+
+    // starts counting for a new run (a file or a REPL entry)
+    void start() {
+        steps = 0;
+        callDepth = 0;
+        deadline = maxMillis > 0 ? deadline(System.nanoTime(), maxMillis) : Long.MAX_VALUE;
+        nextCheck = nextCheck();
+    }
+
+    // now plus millis, Long.MAX_VALUE when that doesn't fit into a long
+    private static long deadline(long now, long millis) {
+        long nanos = millis > Long.MAX_VALUE / 1_000_000 ? Long.MAX_VALUE : millis * 1_000_000;
+        return now > Long.MAX_VALUE - nanos ? Long.MAX_VALUE : now + nanos;
+    }
+
+    void step(Token at) {
+        if(++steps >= nextCheck) {
+            slowCheck(at);
+        }
+    }
+
+    void enterCall(Token at) {
+        if(++callDepth > maxCallDepth && maxCallDepth > 0) {
+            callDepth--;
+            throw new RuntimeError(at, "Call depth limit of " + maxCallDepth + " exceeded");
+        }
+    }
+
+    void exitCall() {
+        callDepth--;
+    }
+
+    private void slowCheck(Token at) {
+        if(maxSteps > 0 && steps > maxSteps) {
+            throw new RuntimeError(at, "Step limit of " + maxSteps + " exceeded");
+        }
+        if(System.nanoTime() > deadline) {
+            throw new RuntimeError(at, "Time limit of " + maxMillis + " ms exceeded");
+        }
+        if(Thread.interrupted()) {
+            throw new RuntimeError(at, "Execution interrupted");
+        }
+        nextCheck = nextCheck();
+    }
+
+    private long nextCheck() {
+        long next = steps + CLOCK_INTERVAL;
+        return maxSteps > 0 ? Math.min(next, maxSteps + 1) : next;
+    }
+}
@@ -7,23 +7,116 @@ package com.lox;
     actual implementation of the classes itself.
     Any calling class should only implement the Visitor Interface and define how the
     visitor interface is going to work for them.
+    The node classes are final, an engine can also switch on kind instead of visiting.
 */
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.Objects;
+
+abstract sealed class Expr {
+ // the kind of every node class
+ static final int ASSIGN = 0;
+ static final int BINARY = 1;
+ static final int CALL = 2;
+ static final int GET = 3;
+ static final int GROUPING = 4;
+ static final int LITERAL = 5;
+ static final int LOGICAL = 6;
+ static final int SET = 7;
+ static final int SUPER = 8;
+ static final int THIS = 9;
+ static final int UNARY = 10;
+ static final int VARIABLE = 11;
+ static final int MEMO = 12;
+ static final int INLINE = 13;
+ static final int ARGUMENT = 14;
 
-abstract class Expr {
  interface Visitor<R> {
     R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
     R visitCallExpr(Call expr);
+    R visitGetExpr(Get expr);
     R visitGroupingExpr(Grouping expr);
     R visitLiteralExpr(Literal expr);
     R visitLogicalExpr(Logical expr);
+    R visitSetExpr(Set expr);
+    R visitSuperExpr(Super expr);
+    R visitThisExpr(This expr);
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
+    R visitMemoExpr(Memo expr);
+    R visitInlineExpr(Inline expr);
+    R visitArgumentExpr(Argument expr);
  }
-static class Assign extends Expr {
+
+ final int kind;
+ // first and last source line, -1 for a node that was not parsed from the source
+ int line = -1;
+ int endLine = -1;
+ private int cachedHash = 0;
+ // what TypeInference proved about the value, UNKNOWN when nothing
+ int type = TypeInference.UNKNOWN;
+
+ Expr(int kind) {
+    this.kind = kind;
+  }
+
+ abstract <R> R accept(Visitor<R> visitor);
+
+ // the syntax fields against the ones of a node of the same kind
+ abstract boolean sameAs(Expr node);
+ abstract int structuralHash();
+
+ // Structural: nodes with equal syntax are equal wherever they are in the source.
+ // The hash is computed once, the syntax of a node never changes.
+ @Override
+ public final boolean equals(Object other) {
+    if(this == other) return true;
+    return other instanceof Expr that && kind == that.kind && hashCode() == that.hashCode() && sameAs(that);
+  }
+
+ @Override
+ public final int hashCode() {
+    int hash = cachedHash;
+    if(hash == 0) {
+      hash = structuralHash();
+      if(hash == 0) hash = 1;
+      cachedHash = hash;
+    }
+    return hash;
+  }
+
+ // tokens are compared by what they say, not by where they are
+ static boolean same(Token a, Token b) {
+    if(a == null || b == null) return a == b;
+    return a.type == b.type && a.lexeme.equals(b.lexeme) && Objects.equals(a.literal, b.literal);
+  }
+
+ static boolean same(Token[] a, Token[] b) {
+    if(a == null || b == null) return a == b;
+    if(a.length != b.length) return false;
+    for (int i = 0; i < a.length; ++i) {
+      if(!same(a[i], b[i])) return false;
+    }
+    return true;
+  }
+
+ static int hash(Token token) {
+    return token == null ? 0 : 31 * token.type.ordinal() + token.lexeme.hashCode();
+  }
+
+ static int hash(Token[] tokens) {
+    if(tokens == null) return 0;
+    int hash = 1;
+    for(Token token : tokens) {
+      hash = 31 * hash + hash(token);
+    }
+    return hash;
+  }
+
+static final class Assign extends Expr {
   Assign(Token name, Expr value) {
+    super(ASSIGN);
     this.name = name;
     this.value = value;
   }
@@ -33,11 +126,31 @@ static class Assign extends Expr {
     return visitor.visitAssignExpr(this);
   }
 
+ @Override
+ boolean sameAs(Expr node) {
+    Assign that = (Assign) node;
+    return Expr.same(name, that.name)
+        && Objects.equals(value, that.value);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(name);
+    hash = 31 * hash + Objects.hashCode(value);
+    return hash;
+  }
+
   final Token name;
   final Expr value;
+
+  // filled in by the Resolver and at runtime, not part of the syntax
+  int global = -1;
+  int slot = -1;
 }
-static class Binary extends Expr {
+static final class Binary extends Expr {
   Binary(Expr left, Token operator, Expr right) {
+    super(BINARY);
     this.left = left;
     this.operator = operator;
     this.right = right;
@@ -48,12 +161,30 @@ static class Binary extends Expr {
     return visitor.visitBinaryExpr(this);
   }
 
+ @Override
+ boolean sameAs(Expr node) {
+    Binary that = (Binary) node;
+    return Objects.equals(left, that.left)
+        && Expr.same(operator, that.operator)
+        && Objects.equals(right, that.right);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Objects.hashCode(left);
+    hash = 31 * hash + Expr.hash(operator);
+    hash = 31 * hash + Objects.hashCode(right);
+    return hash;
+  }
+
   final Expr left;
   final Token operator;
   final Expr right;
 }
-static class Call extends Expr {
-  Call(Expr callee, Token paren, List<Expr> arguments) {
+static final class Call extends Expr {
+  Call(Expr callee, Token paren, Expr[] arguments) {
+    super(CALL);
     this.callee = callee;
     this.paren = paren;
     this.arguments = arguments;
@@ -64,12 +195,65 @@ static class Call extends Expr {
     return visitor.visitCallExpr(this);
   }
 
+ @Override
+ boolean sameAs(Expr node) {
+    Call that = (Call) node;
+    return Objects.equals(callee, that.callee)
+        && Expr.same(paren, that.paren)
+        && Arrays.equals(arguments, that.arguments);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Objects.hashCode(callee);
+    hash = 31 * hash + Expr.hash(paren);
+    hash = 31 * hash + Arrays.hashCode(arguments);
+    return hash;
+  }
+
   final Expr callee;
   final Token paren;
-  final List<Expr> arguments;
+  final Expr[] arguments;
+}
+static final class Get extends Expr {
+  Get(Expr object, Token name) {
+    super(GET);
+    this.object = object;
+    this.name = name;
+  }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+    return visitor.visitGetExpr(this);
+  }
+
+ @Override
+ boolean sameAs(Expr node) {
+    Get that = (Get) node;
+    return Objects.equals(object, that.object)
+        && Expr.same(name, that.name);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Objects.hashCode(object);
+    hash = 31 * hash + Expr.hash(name);
+    return hash;
+  }
+
+  final Expr object;
+  final Token name;
+
+  // filled in by the Resolver and at runtime, not part of the syntax
+  Shape cachedShape;
+  int cachedSlot;
+  LoxFunction cachedMethod;
 }
-static class Grouping extends Expr {
+static final class Grouping extends Expr {
   Grouping(Expr expression) {
+    super(GROUPING);
     this.expression = expression;
   }
 
@@ -78,10 +262,24 @@ static class Grouping extends Expr {
     return visitor.visitGroupingExpr(this);
   }
 
+ @Override
+ boolean sameAs(Expr node) {
+    Grouping that = (Grouping) node;
+    return Objects.equals(expression, that.expression);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Objects.hashCode(expression);
+    return hash;
+  }
+
   final Expr expression;
 }
-static class Literal extends Expr {
+static final class Literal extends Expr {
   Literal(Object value) {
+    super(LITERAL);
     this.value = value;
   }
 
@@ -90,10 +288,24 @@ static class Literal extends Expr {
     return visitor.visitLiteralExpr(this);
   }
 
+ @Override
+ boolean sameAs(Expr node) {
+    Literal that = (Literal) node;
+    return Objects.equals(value, that.value);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Objects.hashCode(value);
+    return hash;
+  }
+
   final Object value;
 }
-static class Logical extends Expr {
+static final class Logical extends Expr {
   Logical(Expr left, Token operator, Expr right) {
+    super(LOGICAL);
     this.left = left;
     this.operator = operator;
     this.right = right;
@@ -104,12 +316,129 @@ static class Logical extends Expr {
     return visitor.visitLogicalExpr(this);
   }
 
+ @Override
+ boolean sameAs(Expr node) {
+    Logical that = (Logical) node;
+    return Objects.equals(left, that.left)
+        && Expr.same(operator, that.operator)
+        && Objects.equals(right, that.right);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Objects.hashCode(left);
+    hash = 31 * hash + Expr.hash(operator);
+    hash = 31 * hash + Objects.hashCode(right);
+    return hash;
+  }
+
   final Expr left;
   final Token operator;
   final Expr right;
 }
-static class Unary extends Expr {
+static final class Set extends Expr {
+  Set(Expr object, Token name, Expr value) {
+    super(SET);
+    this.object = object;
+    this.name = name;
+    this.value = value;
+  }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+    return visitor.visitSetExpr(this);
+  }
+
+ @Override
+ boolean sameAs(Expr node) {
+    Set that = (Set) node;
+    return Objects.equals(object, that.object)
+        && Expr.same(name, that.name)
+        && Objects.equals(value, that.value);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Objects.hashCode(object);
+    hash = 31 * hash + Expr.hash(name);
+    hash = 31 * hash + Objects.hashCode(value);
+    return hash;
+  }
+
+  final Expr object;
+  final Token name;
+  final Expr value;
+
+  // filled in by the Resolver and at runtime, not part of the syntax
+  Shape cachedShape;
+  Shape cachedNext;
+  int cachedSlot;
+}
+static final class Super extends Expr {
+  Super(Token keyword, Token method) {
+    super(SUPER);
+    this.keyword = keyword;
+    this.method = method;
+  }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+    return visitor.visitSuperExpr(this);
+  }
+
+ @Override
+ boolean sameAs(Expr node) {
+    Super that = (Super) node;
+    return Expr.same(keyword, that.keyword)
+        && Expr.same(method, that.method);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(keyword);
+    hash = 31 * hash + Expr.hash(method);
+    return hash;
+  }
+
+  final Token keyword;
+  final Token method;
+
+  // filled in by the Resolver and at runtime, not part of the syntax
+  LoxClass cachedClass;
+  LoxFunction cachedMethod;
+}
+static final class This extends Expr {
+  This(Token keyword) {
+    super(THIS);
+    this.keyword = keyword;
+  }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+    return visitor.visitThisExpr(this);
+  }
+
+ @Override
+ boolean sameAs(Expr node) {
+    This that = (This) node;
+    return Expr.same(keyword, that.keyword);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(keyword);
+    return hash;
+  }
+
+  final Token keyword;
+}
+static final class Unary extends Expr {
   Unary(Token operator, Expr right) {
+    super(UNARY);
     this.operator = operator;
     this.right = right;
   }
@@ -119,11 +448,27 @@ static class Unary extends Expr {
     return visitor.visitUnaryExpr(this);
   }
 
+ @Override
+ boolean sameAs(Expr node) {
+    Unary that = (Unary) node;
+    return Expr.same(operator, that.operator)
+        && Objects.equals(right, that.right);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(operator);
+    hash = 31 * hash + Objects.hashCode(right);
+    return hash;
+  }
+
   final Token operator;
   final Expr right;
 }
-static class Variable extends Expr {
+static final class Variable extends Expr {
   Variable(Token name) {
+    super(VARIABLE);
     this.name = name;
   }
 
@@ -132,8 +477,124 @@ static class Variable extends Expr {
     return visitor.visitVariableExpr(this);
   }
 
+ @Override
+ boolean sameAs(Expr node) {
+    Variable that = (Variable) node;
+    return Expr.same(name, that.name);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(name);
+    return hash;
+  }
+
   final Token name;
+
+  // filled in by the Resolver and at runtime, not part of the syntax
+  int global = -1;
+  int slot = -1;
 }
+static final class Memo extends Expr {
+  Memo(Expr expression) {
+    super(MEMO);
+    this.expression = expression;
+  }
 
- abstract <R> R accept(Visitor<R> visitor);
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+    return visitor.visitMemoExpr(this);
+  }
+
+ @Override
+ boolean sameAs(Expr node) {
+    Memo that = (Memo) node;
+    return Objects.equals(expression, that.expression);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Objects.hashCode(expression);
+    return hash;
+  }
+
+  final Expr expression;
+
+  // filled in by the Resolver and at runtime, not part of the syntax
+  Stmt loop;
+  int slot;
+}
+static final class Inline extends Expr {
+  Inline(Expr callee, Token paren, Expr[] arguments, Expr body) {
+    super(INLINE);
+    this.callee = callee;
+    this.paren = paren;
+    this.arguments = arguments;
+    this.body = body;
+  }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+    return visitor.visitInlineExpr(this);
+  }
+
+ @Override
+ boolean sameAs(Expr node) {
+    Inline that = (Inline) node;
+    return Objects.equals(callee, that.callee)
+        && Expr.same(paren, that.paren)
+        && Arrays.equals(arguments, that.arguments)
+        && Objects.equals(body, that.body);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Objects.hashCode(callee);
+    hash = 31 * hash + Expr.hash(paren);
+    hash = 31 * hash + Arrays.hashCode(arguments);
+    hash = 31 * hash + Objects.hashCode(body);
+    return hash;
+  }
+
+  final Expr callee;
+  final Token paren;
+  final Expr[] arguments;
+  final Expr body;
+
+  // filled in by the Resolver and at runtime, not part of the syntax
+  Stmt.Function function;
+}
+static final class Argument extends Expr {
+  Argument(Token name, int index) {
+    super(ARGUMENT);
+    this.name = name;
+    this.index = index;
+  }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+    return visitor.visitArgumentExpr(this);
+  }
+
+ @Override
+ boolean sameAs(Expr node) {
+    Argument that = (Argument) node;
+    return Expr.same(name, that.name)
+        && Objects.equals(index, that.index);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(name);
+    hash = 31 * hash + Objects.hashCode(index);
+    return hash;
+  }
+
+  final Token name;
+  final int index;
+}
 }
@@ -0,0 +1,58 @@
+package com.lox;
+
+import java.util.Arrays;
+
+// The locals of the functions that run without Environments (see Resolver), the frames of all
+// the calls running right now in one array. A call takes the slots above the ones of its caller
+// and gives them back when it returns, so calls allocate nothing once the array is big enough.
+// Every Interpreter has its own, it runs on one thread.
+// With a memory cap a frame is charged like the Environment it replaces: its size and a binding
+// per slot when it is pushed, the values as they are stored, all of it given back by pop.
+final class FrameStack {
+    private static final int INITIAL_SLOTS = 256;
+
+    Object[] slots = new Object[INITIAL_SLOTS];
+    private int top = 0;
+    private final MemoryBudget memory;
+    // only a capped budget is charged, the stores stay plain array writes otherwise
+    private final boolean counted;
+
+    FrameStack(MemoryBudget memory) {
+        this.memory = memory;
+        this.counted = memory.maxBytes > 0;
+    }
+
+    // the start of a new frame of size slots
+    int push(int size) {
+        int base = top;
+        if(base + size > slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(slots.length * 2, base + size));
+        }
+        top = base + size;
+        if(counted) memory.charge(frameBytes(size));
+        return base;
+    }
+
+    // value into the slot at index, charged against the cap at the token
+    void store(int index, Object value, Token at) {
+        if(counted) memory.allocate(MemoryBudget.sizeOf(value) - MemoryBudget.sizeOf(slots[index]), at);
+        slots[index] = value;
+    }
+
+    // drops the frame starting at base, the values in it can be collected
+    void pop(int base) {
+        if(counted) {
+            long bytes = frameBytes(top - base);
+            for (int i = base; i < top; ++i) {
+                bytes += MemoryBudget.sizeOf(slots[i]);
+            }
+            memory.charge(-bytes);
+        }
+        Arrays.fill(slots, base, top, null);
+        top = base;
+    }
+
+    private static long frameBytes(int size) {
+        return MemoryBudget.ENVIRONMENT_BYTES + size * MemoryBudget.BINDING_BYTES;
+    }
+}
@@ -0,0 +1,321 @@
+package com.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.lox.CompiledFunction.Node;
+import com.lox.CompiledFunction.NumberNode;
+import com.lox.CompiledFunction.Statement;
+
+/*
+    Compiles the body of a hot Stmt.Function into a CompiledFunction.
+    Every declaration inside the function gets its own slot in the frame, the names are
+    resolved in the order of the source like the Interpreter finds them at runtime.
+    Expressions that only do arithmetic on numbers, literals and variables get a primitive
+    double version next to the generic one (see CompiledFunction.Speculated).
+    Functions declaring functions (closures need a real Environment) or defining a name twice
+    in one scope (that is a runtime error of the Interpreter) are left to the Interpreter.
+*/
+class FunctionCompiler implements Expr.Visitor<Node>, Stmt.Visitor<Statement> {
+    // thrown when the function uses something the compiler doesn't handle
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final CompiledFunction function;
+    private final List<Map<String, Integer>> scopes = new ArrayList<>();
+    private int slots = 0;
+
+    private FunctionCompiler(Stmt.Function declaration) {
+        this.function = new CompiledFunction(declaration);
+    }
+
+    // the compiled function, or null when the declaration has to stay interpreted
+    static CompiledFunction compile(Stmt.Function declaration) {
+        try {
+            return new FunctionCompiler(declaration).compileFunction();
+        } catch (Unsupported unsupported) {
+            declaration.interpretOnly = true;
+            return null;
+        }
+    }
+
+    private CompiledFunction compileFunction() {
+        Stmt.Function declaration = function.declaration;
+        beginScope();
+        // the parameters take the first slots, the body runs in their scope
+        for(Token param : declaration.params) {
+            declare(param);
+        }
+        function.body = statements(declaration.body);
+        function.slots = slots;
+        return function;
+    }
+
+    private Statement[] statements(Stmt[] statements) {
+        Statement[] compiled = new Statement[statements.length];
+        for (int i = 0; i < compiled.length; ++i) {
+            compiled[i] = statements[i].accept(this);
+        }
+        return compiled;
+    }
+
+    private Statement[] block(Stmt[] statements) {
+        beginScope();
+        Statement[] compiled = statements(statements);
+        scopes.removeLast();
+        return compiled;
+    }
+
+    private void beginScope() {
+        scopes.add(new HashMap<>());
+    }
+
+    private int declare(Token name) {
+        Map<String, Integer> scope = scopes.getLast();
+        if(scope.containsKey(name.lexeme)) throw new Unsupported();
+        scope.put(name.lexeme, slots);
+        return slots++;
+    }
+
+    // slot of a local, -1 for a name of the closure
+    private int resolve(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; --i) {
+            Integer slot = scopes.get(i).get(name.lexeme);
+            if(slot != null) return slot;
+        }
+        return -1;
+    }
+
+    private Node store(Token name, int global, Node value) {
+        int slot = resolve(name);
+        if(slot >= 0) return new CompiledFunction.LocalStore(slot, name, value);
+        if(global >= 0) return new CompiledFunction.GlobalStore(global, name, value);
+        return new CompiledFunction.OuterStore(name, value);
+    }
+
+    @Override
+    public Statement visitIfStmt(Stmt.If stmt) {
+        Node condition = stmt.condition.accept(this);
+        Statement[] thenBranch = block(stmt.thenBranches);
+        Statement[] elseBranch = stmt.elseBranches == null ? null : block(stmt.elseBranches);
+        return new CompiledFunction.IfStatement(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Statement visitWhileStmt(Stmt.While stmt) {
+        Node condition = stmt.condition.accept(this);
+        return new CompiledFunction.LoopStatement(stmt.keyword, condition, block(stmt.body), null);
+    }
+
+    @Override
+    public Statement visitForStmt(Stmt.For stmt) {
+        // the loop variable gets one slot for the whole loop
+        beginScope();
+        Statement init = stmt.initializer == null ? null : stmt.initializer.accept(this);
+        Node condition = stmt.condition == null ? new CompiledFunction.Constant(true) : stmt.condition.accept(this);
+        Node increment = stmt.increment == null ? null : stmt.increment.accept(this);
+        Statement loop = new CompiledFunction.LoopStatement(stmt.keyword, condition, block(stmt.body), increment);
+        scopes.removeLast();
+        if(init == null) return loop;
+        return new CompiledFunction.Sequence(new Statement[] { init, loop });
+    }
+
+    @Override
+    public Statement visitBreakStmt(Stmt.Break stmt) {
+        return new CompiledFunction.JumpStatement(CompiledFunction.BREAK);
+    }
+
+    @Override
+    public Statement visitContinueStmt(Stmt.Continue stmt) {
+        return new CompiledFunction.JumpStatement(CompiledFunction.CONTINUE);
+    }
+
+    @Override
+    public Statement visitBlockStmt(Stmt.Block stmt) {
+        return new CompiledFunction.Sequence(block(stmt.statements));
+    }
+
+    @Override
+    public Statement visitExpressionStmt(Stmt.Expression stmt) {
+        return new CompiledFunction.ExpressionStatement(stmt.expression.accept(this));
+    }
+
+    @Override
+    public Statement visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Statement visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Statement visitPrintStmt(Stmt.Print stmt) {
+        return new CompiledFunction.PrintStatement(stmt.expression.accept(this));
+    }
+
+    @Override
+    public Statement visitReturnStmt(Stmt.Return stmt) {
+        return new CompiledFunction.ReturnStatement(stmt.value == null ? null : stmt.value.accept(this));
+    }
+
+    @Override
+    public Statement visitVarStmt(Stmt.Var stmt) {
+        Node value = stmt.initializer == null ? new CompiledFunction.Constant(null) : stmt.initializer.accept(this);
+        int slot = declare(stmt.name);
+        return new CompiledFunction.ExpressionStatement(new CompiledFunction.LocalStore(slot, stmt.name, value));
+    }
+
+    @Override
+    public Statement visitReassignStmt(Stmt.Reassign stmt) {
+        Node value = stmt.reInitializer == null ? new CompiledFunction.Constant(null) : stmt.reInitializer.accept(this);
+        return new CompiledFunction.ExpressionStatement(store(stmt.name, stmt.global, value));
+    }
+
+    @Override
+    public Node visitAssignExpr(Expr.Assign expr) {
+        return store(expr.name, expr.global, expr.value.accept(this));
+    }
+
+    @Override
+    public Node visitBinaryExpr(Expr.Binary expr) {
+        Node generic = new CompiledFunction.Binary(expr.operator, expr.left.accept(this), expr.right.accept(this));
+        switch (expr.operator.type) {
+            case TokenType.GREATER:
+            case TokenType.GREATER_EQUAL:
+            case TokenType.LESS:
+            case TokenType.LESS_EQUAL:
+                NumberNode left = number(expr.left);
+                NumberNode right = number(expr.right);
+                if(left == null || right == null) return generic;
+                return new CompiledFunction.SpeculatedCompare(function, expr.operator.type, left, right, generic);
+            case TokenType.EQUAL_EQUAL:
+            case TokenType.BANG_EQUAL:
+                return generic;
+        }
+        NumberNode fast = number(expr);
+        if(fast == null) return generic;
+        return new CompiledFunction.Speculated(function, fast, generic);
+    }
+
+    @Override
+    public Node visitCallExpr(Expr.Call expr) {
+        Node[] arguments = new Node[expr.arguments.length];
+        for (int i = 0; i < arguments.length; ++i) {
+            arguments[i] = expr.arguments[i].accept(this);
+        }
+        return new CompiledFunction.Call(expr.callee.accept(this), arguments, expr.paren);
+    }
+
+    @Override
+    public Node visitGetExpr(Expr.Get expr) {
+        return new CompiledFunction.GetProperty(expr, expr.object.accept(this));
+    }
+
+    @Override
+    public Node visitSetExpr(Expr.Set expr) {
+        return new CompiledFunction.SetProperty(expr, expr.object.accept(this), expr.value.accept(this));
+    }
+
+    @Override
+    public Node visitSuperExpr(Expr.Super expr) {
+        return new CompiledFunction.SuperMethod(expr);
+    }
+
+    @Override
+    public Node visitThisExpr(Expr.This expr) {
+        // methods bind 'this' in the closure, never in the frame
+        return new CompiledFunction.OuterRead(expr.keyword);
+    }
+
+    @Override
+    public Node visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Node visitLiteralExpr(Expr.Literal expr) {
+        return new CompiledFunction.Constant(expr.value);
+    }
+
+    @Override
+    public Node visitLogicalExpr(Expr.Logical expr) {
+        return new CompiledFunction.Logical(expr.operator, expr.left.accept(this), expr.right.accept(this));
+    }
+
+    @Override
+    public Node visitUnaryExpr(Expr.Unary expr) {
+        Node generic = new CompiledFunction.Unary(expr.operator, expr.right.accept(this));
+        if(expr.operator.type != TokenType.MINUS) return generic;
+        NumberNode fast = number(expr);
+        if(fast == null) return generic;
+        return new CompiledFunction.Speculated(function, fast, generic);
+    }
+
+    // the memo slots belong to the interpreted loops, compiled code just computes the expression
+    @Override
+    public Node visitMemoExpr(Expr.Memo expr) {
+        return expr.expression.accept(this);
+    }
+
+    // compiled as the call it replaced
+    @Override
+    public Node visitInlineExpr(Expr.Inline expr) {
+        return visitCallExpr(new Expr.Call(expr.callee, expr.paren, expr.arguments));
+    }
+
+    // only found in the body of an Expr.Inline, which is never compiled
+    @Override
+    public Node visitArgumentExpr(Expr.Argument expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Node visitVariableExpr(Expr.Variable expr) {
+        int slot = resolve(expr.name);
+        if(slot >= 0) return new CompiledFunction.LocalRead(slot);
+        if(expr.global >= 0) return new CompiledFunction.GlobalRead(expr.global, expr.name);
+        return new CompiledFunction.OuterRead(expr.name);
+    }
+
+    // The double version of an expression made only of number literals, variables and
+    // arithmetic, null for anything else. A string literal anywhere keeps '+' generic.
+    private NumberNode number(Expr expr) {
+        if(expr instanceof Expr.Literal literal) {
+            if(literal.value instanceof Double value) return new CompiledFunction.NumberConstant(value);
+            return null;
+        }
+        if(expr instanceof Expr.Grouping grouping) {
+            return number(grouping.expression);
+        }
+        if(expr instanceof Expr.Variable variable) {
+            int slot = resolve(variable.name);
+            if(slot >= 0) return new CompiledFunction.NumberLocal(slot);
+            if(variable.global >= 0) return new CompiledFunction.NumberGlobal(variable.global, variable.name);
+            return new CompiledFunction.NumberOuter(variable.name);
+        }
+        if(expr instanceof Expr.Unary unary) {
+            if(unary.operator.type != TokenType.MINUS) return null;
+            NumberNode right = number(unary.right);
+            return right == null ? null : new CompiledFunction.Negate(right);
+        }
+        if(expr instanceof Expr.Binary binary) {
+            NumberNode left = number(binary.left);
+            NumberNode right = number(binary.right);
+            if(left == null || right == null) return null;
+            switch (binary.operator.type) {
+                case TokenType.PLUS: return new CompiledFunction.Add(left, right);
+                case TokenType.MINUS: return new CompiledFunction.Subtract(left, right);
+                case TokenType.STAR: return new CompiledFunction.Multiply(left, right);
+                case TokenType.SLASH: return new CompiledFunction.Divide(binary.operator, left, right);
+            }
+        }
+        return null;
+    }
+}
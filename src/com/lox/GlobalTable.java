@@ -0,0 +1,123 @@
+package com.lox;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/*
+    The global variables of an Interpreter, in a dense table indexed by symbol id.
+    The Resolver gives every global name a slot the first time it sees it and stores the slot
+    in the Variable, Assign and declaration nodes, so reading a global inside a hot loop is one
+    array load instead of a walk up the Environment chain and a HashMap lookup.
+    A slot exists before its variable is defined (a function calling one that is declared further
+    down), it holds UNDEFINED until the declaration runs and binds it late.
+    The root Environment forwards to the table by name, for the lookups nothing resolved.
+    A native is a predefined binding: a script may declare a global of its name, which then
+    replaces the native, like in scripts older than the native.
+*/
+final class GlobalTable {
+    // value of a slot whose variable is not defined (yet)
+    private static final Object UNDEFINED = new Object();
+
+    final MemoryBudget memory;
+    private final Map<String, Integer> slots;
+    private Object[] values;
+    // the slots still holding the native they were defined with
+    private final BitSet natives;
+
+    GlobalTable(MemoryBudget memory) {
+        this.memory = memory;
+        this.slots = new HashMap<>();
+        this.values = new Object[16];
+        this.natives = new BitSet();
+        Arrays.fill(values, UNDEFINED);
+    }
+
+    private GlobalTable(GlobalTable table, MemoryBudget memory) {
+        this.memory = memory;
+        this.slots = new HashMap<>(table.slots);
+        this.values = table.values.clone();
+        this.natives = (BitSet) table.natives.clone();
+    }
+
+    // copy of the table, used to start from a prepared set of globals
+    GlobalTable copy(MemoryBudget memory) {
+        return new GlobalTable(this, memory);
+    }
+
+    // the slot of a name, a new one the first time the name comes up
+    int slot(String name) {
+        Integer slot = slots.get(name);
+        if(slot != null) return slot;
+        slot = slots.size();
+        slots.put(name, slot);
+        if(slot == values.length) {
+            values = Arrays.copyOf(values, slot * 2);
+            Arrays.fill(values, slot, values.length, UNDEFINED);
+        }
+        return slot;
+    }
+
+    Object get(int slot, Token name) {
+        Object value = values[slot];
+        if(value == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        }
+        return value;
+    }
+
+    void define(int slot, Token name, Object value) {
+        if(natives.get(slot)) {
+            // the script's own global of the name, the native is gone
+            natives.clear(slot);
+        } else if(values[slot] != UNDEFINED) {
+            throw new RuntimeError(name,"Variable " + "'" + name.lexeme + "'"+" already defined");
+        }
+        values[slot] = value;
+        memory.allocate(MemoryBudget.BINDING_BYTES + MemoryBudget.sizeOf(value), name);
+    }
+
+    // a native, a declaration of the script may replace it (see NativeRegistry)
+    void defineNative(Token name, Object value) {
+        int slot = slot(name.lexeme);
+        if(values[slot] != UNDEFINED) throw new IllegalStateException("Native " + name.lexeme + " is defined twice");
+        define(slot, name, value);
+        natives.set(slot);
+    }
+
+    void assign(int slot, Token name, Object value) {
+        Object previous = get(slot, name);
+        values[slot] = value;
+        memory.allocate(MemoryBudget.sizeOf(value) - MemoryBudget.sizeOf(previous), name);
+    }
+
+    // every defined value through the function, for wrapping the natives (see Recording)
+    void replaceAll(UnaryOperator<Object> function) {
+        for (int i = 0; i < slots.size(); ++i) {
+            if(values[i] != UNDEFINED) values[i] = function.apply(values[i]);
+        }
+    }
+
+    // by name, for the root Environment
+    Object get(Token name) {
+        Integer slot = slots.get(name.lexeme);
+        if(slot == null) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        }
+        return get(slot, name);
+    }
+
+    void define(Token name, Object value) {
+        define(slot(name.lexeme), name, value);
+    }
+
+    void assign(Token name, Object value) {
+        Integer slot = slots.get(name.lexeme);
+        if(slot == null) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        }
+        assign(slot, name, value);
+    }
+}
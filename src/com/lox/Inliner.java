@@ -0,0 +1,346 @@
+package com.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/*
+    Function inlining over the AST, run before the Optimizer.
+    A small function declared at the top level whose body is a single 'return <expression>;'
+    gets its direct calls replaced by an Expr.Inline holding a copy of that expression. In the
+    copy the parameters are Expr.Argument reads of the evaluated arguments, so every argument
+    is still evaluated once and in order, and every other name is a global, as in the function.
+    A function is inlined when
+    - its expression has at most maxSize nodes and no 'this' or 'super',
+    - it doesn't call itself, assign a parameter or have two parameters of the same name,
+    - its name doesn't escape: it is only ever called, never read as a value, assigned or
+      declared again,
+    - the call passes as many arguments as it has parameters.
+    The Interpreter still checks that the callee is the inlined function before it evaluates the
+    body, a call that runs before the declaration (or sees another function) stays a call.
+    Calls in an inlined body are inlined up to maxDepth levels deep, that also ends mutual
+    recursion. Errors in the body report the lines of the function, like the call would.
+*/
+class Inliner {
+    static final int DEFAULT_MAX_SIZE = 24;
+    static final int DEFAULT_MAX_DEPTH = 3;
+
+    private final int maxSize;
+    private final int maxDepth;
+    // the functions that can be inlined, by name
+    private final Map<String, Stmt.Function> inlinable = new HashMap<>();
+    private final List<String> rewrites = new ArrayList<>();
+
+    Inliner(int maxSize, int maxDepth) {
+        this.maxSize = maxSize;
+        this.maxDepth = maxDepth;
+    }
+
+    List<Stmt> inline(List<Stmt> statements) {
+        Map<String, Integer> declarations = new HashMap<>();
+        Set<String> escaping = new HashSet<>();
+        collectNames(statements, declarations, escaping);
+        for(Stmt statement : statements) {
+            if(statement.kind != Stmt.FUNCTION) continue;
+            Stmt.Function function = (Stmt.Function) statement;
+            String name = function.name.lexeme;
+            if(declarations.get(name) == 1 && !escaping.contains(name) && isInlinable(function)) {
+                inlinable.put(name, function);
+            }
+        }
+        if(inlinable.isEmpty()) return statements;
+        List<Stmt> inlined = new ArrayList<>(statements.size());
+        for(Stmt statement : statements) {
+            inlined.add(statement(statement));
+        }
+        return inlined;
+    }
+
+    // the inlined calls, for --dump-opt
+    void dump(PrintStream out) {
+        for(String rewrite : rewrites) {
+            out.println(rewrite);
+        }
+    }
+
+    private boolean isInlinable(Stmt.Function function) {
+        if(function.body.length != 1 || function.body[0].kind != Stmt.RETURN) return false;
+        Expr value = ((Stmt.Return) function.body[0]).value;
+        if(value == null || Optimizer.size(value) > maxSize) return false;
+        Set<String> params = new HashSet<>();
+        for(Token param : function.params) {
+            if(!params.add(param.lexeme)) return false;
+        }
+        return isSimple(value, function.name.lexeme, params);
+    }
+
+    // no 'this', 'super', call of the function itself or assignment of a parameter
+    private static boolean isSimple(Expr expr, String name, Set<String> params) {
+        switch (expr.kind) {
+            case Expr.THIS:
+            case Expr.SUPER:
+                return false;
+            case Expr.ASSIGN:
+                if(params.contains(((Expr.Assign) expr).name.lexeme)) return false;
+                break;
+            case Expr.CALL: {
+                Expr callee = ((Expr.Call) expr).callee;
+                if(callee.kind == Expr.VARIABLE && ((Expr.Variable) callee).name.lexeme.equals(name)) return false;
+                break;
+            }
+        }
+        boolean[] simple = {true};
+        Optimizer.forEachChild(expr, child -> simple[0] &= isSimple(child, name, params));
+        return simple[0];
+    }
+
+    /*
+        How often each name is declared or assigned, and the names used as a value.
+        The statements and expressions still to look at are kept on an explicit stack, not the
+        Java one, so long operator chains and deep nesting can't overflow it.
+    */
+    private static void collectNames(List<Stmt> statements, Map<String, Integer> declarations, Set<String> escaping) {
+        Deque<Object> pending = new ArrayDeque<>(statements);
+        while(!pending.isEmpty()) {
+            Object node = pending.pop();
+            if(node instanceof Stmt stmt) {
+                collectNames(stmt, declarations, pending);
+            } else {
+                collectNames((Expr) node, declarations, escaping, pending);
+            }
+        }
+    }
+
+    // counts the names the statement declares, its parts go on pending
+    private static void collectNames(Stmt stmt, Map<String, Integer> declarations, Deque<Object> pending) {
+        switch (stmt.kind) {
+            case Stmt.IF: {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                push(pending, ifStmt.condition);
+                push(pending, ifStmt.thenBranches);
+                if(ifStmt.elseBranches != null) push(pending, ifStmt.elseBranches);
+                break;
+            }
+            case Stmt.WHILE: {
+                Stmt.While whileStmt = (Stmt.While) stmt;
+                push(pending, whileStmt.condition);
+                push(pending, whileStmt.body);
+                break;
+            }
+            case Stmt.FOR: {
+                Stmt.For forStmt = (Stmt.For) stmt;
+                if(forStmt.initializer != null) pending.push(forStmt.initializer);
+                push(pending, forStmt.condition);
+                push(pending, forStmt.increment);
+                push(pending, forStmt.body);
+                break;
+            }
+            case Stmt.BLOCK:
+                push(pending, ((Stmt.Block) stmt).statements);
+                break;
+            case Stmt.CLASS: {
+                Stmt.Class classStmt = (Stmt.Class) stmt;
+                declarations.merge(classStmt.name.lexeme, 1, Integer::sum);
+                if(classStmt.superclass != null) pending.push(classStmt.superclass);
+                for(Stmt.Function method : classStmt.methods) {
+                    for(Token param : method.params) declarations.merge(param.lexeme, 1, Integer::sum);
+                    push(pending, method.body);
+                }
+                break;
+            }
+            case Stmt.FUNCTION: {
+                Stmt.Function function = (Stmt.Function) stmt;
+                declarations.merge(function.name.lexeme, 1, Integer::sum);
+                for(Token param : function.params) declarations.merge(param.lexeme, 1, Integer::sum);
+                push(pending, function.body);
+                break;
+            }
+            case Stmt.RETURN:
+                push(pending, ((Stmt.Return) stmt).value);
+                break;
+            case Stmt.VAR:
+                declarations.merge(((Stmt.Var) stmt).name.lexeme, 1, Integer::sum);
+                push(pending, ((Stmt.Var) stmt).initializer);
+                break;
+            case Stmt.REASSIGN:
+                declarations.merge(((Stmt.Reassign) stmt).name.lexeme, 1, Integer::sum);
+                push(pending, ((Stmt.Reassign) stmt).reInitializer);
+                break;
+            default:
+                push(pending, Optimizer.expressionOf(stmt));
+                break;
+        }
+    }
+
+    // counts the name the expression assigns or uses as a value, its operands go on pending
+    private static void collectNames(Expr expr, Map<String, Integer> declarations, Set<String> escaping,
+                                     Deque<Object> pending) {
+        switch (expr.kind) {
+            case Expr.VARIABLE:
+                escaping.add(((Expr.Variable) expr).name.lexeme);
+                return;
+            case Expr.ASSIGN:
+                declarations.merge(((Expr.Assign) expr).name.lexeme, 1, Integer::sum);
+                break;
+            case Expr.CALL: {
+                // the callee itself is not a use as a value
+                Expr.Call call = (Expr.Call) expr;
+                if(call.callee.kind != Expr.VARIABLE) pending.push(call.callee);
+                for(Expr argument : call.arguments) pending.push(argument);
+                return;
+            }
+        }
+        Optimizer.forEachChild(expr, pending::push);
+    }
+
+    private static void push(Deque<Object> pending, Expr expr) {
+        if(expr != null) pending.push(expr);
+    }
+
+    private static void push(Deque<Object> pending, Stmt[] statements) {
+        for(Stmt statement : statements) pending.push(statement);
+    }
+
+    // The statement with the calls in it inlined. Statement arrays are changed in place, a
+    // function keeps its declaration: the inlined calls of it are checked against it.
+    private Stmt statement(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.IF: {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                statements(ifStmt.thenBranches);
+                if(ifStmt.elseBranches != null) statements(ifStmt.elseBranches);
+                Expr condition = expression(ifStmt.condition, 0);
+                if(condition == ifStmt.condition) return stmt;
+                return Optimizer.at(new Stmt.If(condition, ifStmt.thenBranches, ifStmt.elseBranches), stmt);
+            }
+            case Stmt.WHILE: {
+                Stmt.While whileStmt = (Stmt.While) stmt;
+                statements(whileStmt.body);
+                Expr condition = expression(whileStmt.condition, 0);
+                if(condition == whileStmt.condition) return stmt;
+                return Optimizer.at(new Stmt.While(whileStmt.keyword, condition, whileStmt.body), stmt);
+            }
+            case Stmt.FOR: {
+                Stmt.For forStmt = (Stmt.For) stmt;
+                statements(forStmt.body);
+                Stmt initializer = forStmt.initializer == null ? null : statement(forStmt.initializer);
+                Expr condition = forStmt.condition == null ? null : expression(forStmt.condition, 0);
+                Expr increment = forStmt.increment == null ? null : expression(forStmt.increment, 0);
+                if(initializer == forStmt.initializer && condition == forStmt.condition
+                        && increment == forStmt.increment) return stmt;
+                return Optimizer.at(new Stmt.For(forStmt.keyword, initializer, condition, increment, forStmt.body), stmt);
+            }
+            case Stmt.BLOCK:
+                statements(((Stmt.Block) stmt).statements);
+                return stmt;
+            case Stmt.CLASS:
+                for(Stmt.Function method : ((Stmt.Class) stmt).methods) statements(method.body);
+                return stmt;
+            case Stmt.FUNCTION:
+                statements(((Stmt.Function) stmt).body);
+                return stmt;
+            case Stmt.RETURN: {
+                Stmt.Return returnStmt = (Stmt.Return) stmt;
+                Expr value = returnStmt.value == null ? null : expression(returnStmt.value, 0);
+                if(value == returnStmt.value) return stmt;
+                return Optimizer.at(new Stmt.Return(returnStmt.keyword, value), stmt);
+            }
+            case Stmt.EXPRESSION:
+            case Stmt.PRINT:
+            case Stmt.VAR:
+            case Stmt.REASSIGN: {
+                Expr expr = Optimizer.expressionOf(stmt);
+                Expr inlined = expr == null ? null : expression(expr, 0);
+                return inlined == expr ? stmt : Optimizer.withExpression(stmt, inlined);
+            }
+            default:
+                return stmt;
+        }
+    }
+
+    private void statements(Stmt[] statements) {
+        for (int i = 0; i < statements.length; ++i) {
+            statements[i] = statement(statements[i]);
+        }
+    }
+
+    // the expression with the calls of inlinable functions inlined, depth levels down already
+    private Expr expression(Expr expr, int depth) {
+        return rebuild(expr, node -> inlineCall(node, depth));
+    }
+
+    // the expression of a function with its parameters read from the arguments
+    private Expr substitute(Expr expr, Token[] params, int depth) {
+        return rebuild(expr, node -> {
+            if(node.kind != Expr.VARIABLE) return inlineCall(node, depth);
+            Token name = ((Expr.Variable) node).name;
+            for (int i = 0; i < params.length; ++i) {
+                if(params[i].lexeme.equals(name.lexeme)) return Optimizer.at(new Expr.Argument(name, i), node);
+            }
+            return node;
+        });
+    }
+
+    // a node whose children are being rebuilt, it is rebuilt once they are done
+    private static final class Rebuild {
+        final Expr node;
+        final int children;
+
+        Rebuild(Expr node, int children) {
+            this.node = node;
+            this.children = children;
+        }
+    }
+
+    /*
+        The expression rebuilt bottom up: every node gets its rebuilt children, left to right,
+        and is then passed to rewrite. The nodes still to visit and the rebuilt ones are kept on
+        explicit stacks, not the Java one, so long operator chains can't overflow it.
+    */
+    private static Expr rebuild(Expr expr, UnaryOperator<Expr> rewrite) {
+        Deque<Object> pending = new ArrayDeque<>();
+        Deque<Expr> rebuilt = new ArrayDeque<>();
+        List<Expr> children = new ArrayList<>();
+        pending.push(expr);
+        while(!pending.isEmpty()) {
+            Object top = pending.pop();
+            if(top instanceof Expr node) {
+                children.clear();
+                Optimizer.forEachChild(node, children::add);
+                pending.push(new Rebuild(node, children.size()));
+                // the leftmost child on top, it is rebuilt first
+                for (int i = children.size() - 1; i >= 0; --i) pending.push(children.get(i));
+                continue;
+            }
+            Rebuild rebuild = (Rebuild) top;
+            Expr[] done = new Expr[rebuild.children];
+            for (int i = done.length - 1; i >= 0; --i) done[i] = rebuilt.pop();
+            int[] next = {0};
+            rebuilt.push(rewrite.apply(Optimizer.rewriteChildren(rebuild.node, child -> done[next[0]++])));
+        }
+        return rebuilt.pop();
+    }
+
+    private Expr inlineCall(Expr expr, int depth) {
+        if(expr.kind != Expr.CALL || depth >= maxDepth) return expr;
+        Expr.Call call = (Expr.Call) expr;
+        if(call.callee.kind != Expr.VARIABLE) return expr;
+        Stmt.Function function = inlinable.get(((Expr.Variable) call.callee).name.lexeme);
+        if(function == null || function.params.length != call.arguments.length) return expr;
+
+        Expr value = ((Stmt.Return) function.body[0]).value;
+        Expr body = substitute(value, function.params, depth + 1);
+        Expr.Inline inline = Optimizer.at(new Expr.Inline(call.callee, call.paren, call.arguments, body), call);
+        inline.function = function;
+        rewrites.add("[line " + call.line + "] inlined the call of " + function.name.lexeme
+                + " declared at line " + function.line);
+        return inline;
+    }
+}
@@ -1,45 +1,135 @@
 package com.lox;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-
-    Interpreter() {
-        Token nativeFuncName = new Token(TokenType.IDENTIFIER, "clock", null, -1);
-        globals.define(nativeFuncName, new LoxCallable() {
-            @Override
-            public int arity() {
-                return 0;
-            }
+    // The native globals are built once per JVM and copied into every new Interpreter,
+    // so the REPL, the daemon and repeated runs don't set them up again.
+    private static final GlobalTable nativeGlobals = defineNatives();
+    // name of the superclass in the scope around the methods of a subclass
+    private static final Token SUPER = new Token(TokenType.SUPER, "super", null, -1);
+    final MemoryBudget memory;
+    final GlobalTable globalTable;
+    // the root scope, it forwards to the globalTable
+    final Environment globals;
+    private Environment environment;
+    final PrintStream out;
+    final ErrorReporter reporter;
+    ExecutionBudget budget = ExecutionBudget.unlimited();
+    // calls + loop iterations after which a function gets compiled, 0 keeps everything interpreted
+    int jitThreshold = 0;
+    // declaration of the interpreted function running right now, it collects the loop iterations
+    Stmt.Function currentFunction = null;
+    // the break or continue being carried out, the statements up to its loop are skipped
+    private Token jump = null;
+    // evaluate through Expr/Stmt.accept instead of the switch on the node kind, for comparing
+    boolean visitorDispatch = false;
+    // run the Inliner and the Optimizer before the Resolver and TypeInference after it, and
+    // print where they rewrote something
+    boolean optimize = true;
+    boolean dumpOptimizations = false;
+    // the memo slots of the loops running right now (see Optimizer), the innermost first
+    private MemoFrame memo = null;
+    // limits of the Inliner: nodes of an inlined expression and levels of inlining, 0 turns it off
+    int inlineSize = Inliner.DEFAULT_MAX_SIZE;
+    int inlineDepth = Inliner.DEFAULT_MAX_DEPTH;
+    // the arguments of the inlined call whose body is evaluated right now
+    private Object[] inlineArguments = null;
+    // print the statement level expressions with the types TypeInference found
+    boolean dumpTypes = false;
+    // print the prepared statements, as S-expressions or JSON, null for not at all
+    AstPrinter.Mode dumpAst = null;
+    // the run being recorded or replayed, it sees every statement (see Recording)
+    Recording recording = null;
+    // the statements and branches that ran, for --coverage
+    Coverage coverage = null;
+    // the sampling profiler, it keeps a shadow stack of the Lox calls and their lines
+    Profiler profiler = null;
+    // the locals of the functions that run without Environments (see Resolver), and the
+    // start of the frame of the one running right now
+    private final FrameStack frames;
+    private int frame = -1;
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double) (System.currentTimeMillis() / 1000);
-            }
-            @Override
-            public String toString() {
-                return "<native fn>";
-            }
-        });
+    private static final class MemoFrame {
+        private static final Object UNSET = new Object();
+        final Stmt loop;
+        final Object[] values;
+        final MemoFrame outer;
+
+        MemoFrame(Stmt loop, int slots, MemoFrame outer) {
+            this.loop = loop;
+            this.values = new Object[slots];
+            this.outer = outer;
+            Arrays.fill(values, UNSET);
+        }
+
+        // forgets the per iteration slots
+        void clear(int from) {
+            Arrays.fill(values, from, values.length, UNSET);
+        }
+    }
+
+    Interpreter(PrintStream out, ErrorReporter reporter, MemoryBudget memory) {
+        this.out = out;
+        this.reporter = reporter;
+        this.memory = memory;
+        this.frames = new FrameStack(memory);
+        this.globalTable = nativeGlobals.copy(memory);
+        this.globals = new Environment(globalTable);
+        this.environment = globals;
+    }
+
+    private static GlobalTable defineNatives() {
+        GlobalTable natives = new GlobalTable(MemoryBudget.unlimited());
+        NativeRegistry.defineAll(natives);
+        return natives;
     }
 
     void interpret(List<Stmt> statements) {
+        budget.start();
         try {
             for(Stmt statement : statements) {
                 execute(statement);
             }
         }
         catch (RuntimeError err){
-            Lox.runtimeError(err);
+            reporter.runtimeError(err);
         }
     }
+    // Dispatches on the kind of the node with one tableswitch. The visit methods are called
+    // directly from here, so the JIT can inline the hot ones into execute/evaluate instead of
+    // going through a megamorphic accept. --dispatch=visitor goes back to accept.
     private void execute(Stmt stmt) {
-        stmt.accept(this);
+        if(recording != null) recording.statement(stmt);
+        if(coverage != null) coverage.ran(stmt);
+        if(profiler != null) profiler.line(stmt.line);
+        if(visitorDispatch) {
+            stmt.accept(this);
+            return;
+        }
+        switch (stmt.kind) {
+            case Stmt.IF: visitIfStmt((Stmt.If) stmt); break;
+            case Stmt.WHILE: visitWhileStmt((Stmt.While) stmt); break;
+            case Stmt.FOR: visitForStmt((Stmt.For) stmt); break;
+            case Stmt.BREAK: visitBreakStmt((Stmt.Break) stmt); break;
+            case Stmt.CONTINUE: visitContinueStmt((Stmt.Continue) stmt); break;
+            case Stmt.BLOCK: visitBlockStmt((Stmt.Block) stmt); break;
+            case Stmt.CLASS: visitClassStmt((Stmt.Class) stmt); break;
+            case Stmt.EXPRESSION: visitExpressionStmt((Stmt.Expression) stmt); break;
+            case Stmt.FUNCTION: visitFunctionStmt((Stmt.Function) stmt); break;
+            case Stmt.PRINT: visitPrintStmt((Stmt.Print) stmt); break;
+            case Stmt.RETURN: visitReturnStmt((Stmt.Return) stmt); break;
+            case Stmt.VAR: visitVarStmt((Stmt.Var) stmt); break;
+            case Stmt.REASSIGN: visitReassignStmt((Stmt.Reassign) stmt); break;
+            default: throw new IllegalStateException("Unknown statement kind " + stmt.kind);
+        }
     }
-    private String stringify(Object obj) {
+    String stringify(Object obj) {
         if(obj == null) return "nil";
 
         if(obj instanceof Double) {
@@ -53,53 +143,182 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
         if(isTruthy(evaluate(stmt.condition))) {
-            executeBlock(stmt.thenBranches, new Environment(environment));
-        } else if (stmt.elseBranches != null) {
-            executeBlock(stmt.elseBranches, new Environment(environment));
+            if(coverage != null) coverage.branch(stmt, true);
+            executeScope(stmt.thenBranches);
+        } else {
+            if(coverage != null) coverage.branch(stmt, false);
+            if(stmt.elseBranches != null) executeScope(stmt.elseBranches);
         }
         return null;
     }
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-        if(stmt.initStmt != null) {
-            execute(stmt.initStmt);
+        MemoFrame outer = memo;
+        if(stmt.memoSlots > 0) memo = new MemoFrame(stmt, stmt.memoSlots, outer);
+        try {
+            while(isTruthy(evaluate(stmt.condition))) {
+                budget.step(stmt.keyword);
+                if(currentFunction != null) currentFunction.hotness++;
+                if(coverage != null) coverage.branch(stmt, true);
+                if(stmt.iterationMemo < stmt.memoSlots) memo.clear(stmt.iterationMemo);
+                if(!executeLoopBody(stmt.body, stmt.flatBody)) return null;
+            }
+            // the condition ended the loop, not a break
+            if(coverage != null) coverage.branch(stmt, false);
+        } finally {
+            memo = outer;
+        }
+        return null;
+    }
+
+    // The loop variable lives in one scope for the whole loop, the increment runs at the end
+    // of each iteration, also after a continue.
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        Environment previous = environment;
+        if(stmt.initializer != null && !inFrame()) {
+            environment = new Environment(environment);
         }
-        while(isTruthy(evaluate(stmt.condition))) {
-            executeBlock(stmt.body, new Environment(environment));
+        MemoFrame outer = memo;
+        try {
+            if(stmt.initializer != null) execute(stmt.initializer);
+            if(stmt.memoSlots > 0) memo = new MemoFrame(stmt, stmt.memoSlots, outer);
+            while(stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
+                budget.step(stmt.keyword);
+                if(currentFunction != null) currentFunction.hotness++;
+                if(coverage != null) coverage.branch(stmt, true);
+                if(stmt.iterationMemo < stmt.memoSlots) memo.clear(stmt.iterationMemo);
+                if(!executeLoopBody(stmt.body, stmt.flatBody)) return null;
+                if(stmt.increment != null) evaluate(stmt.increment);
+            }
+            if(coverage != null) coverage.branch(stmt, false);
+        } finally {
+            memo = outer;
+            if(environment != previous) {
+                environment.release();
+                environment = previous;
+            }
+        }
+        return null;
+    }
+
+    // One iteration, false when it ended with a break. A body that declares nothing runs
+    // without a scope of its own.
+    private boolean executeLoopBody(Stmt[] body, boolean flat) {
+        if(flat) {
+            executeStatements(body);
+        } else {
+            executeScope(body);
         }
+        if(jump == null) return true;
+        boolean isBreak = jump.type == TokenType.BREAK;
+        jump = null;
+        return !isBreak;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        jump = stmt.keyword;
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        jump = stmt.keyword;
         return null;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment((environment)));
+        executeScope(stmt.statements);
         return null;
     }
-    public void executeBlock(List<Stmt> statements, Environment environment) {
+
+    // A scope of its own for the statements, but in a function running on the frame stack
+    // the locals already have their slots.
+    private void executeScope(Stmt[] statements) {
+        if(inFrame()) {
+            executeStatements(statements);
+        } else {
+            executeBlock(statements, new Environment(environment));
+        }
+    }
+
+    private boolean inFrame() {
+        return currentFunction != null && currentFunction.frameSlots >= 0;
+    }
+
+    // Runs a function whose locals live in a frame on the frame stack. The closure stays the
+    // Environment of the call, for the names that are no locals.
+    Object invokeInFrame(Stmt.Function declaration, Environment closure, List<Object> arguments) {
+        int base = frames.push(declaration.frameSlots);
+        for (int i = 0; i < arguments.size(); ++i) {
+            frames.store(base + i, arguments.get(i), declaration.params[i]);
+        }
+        Environment previous = environment;
+        Stmt.Function caller = currentFunction;
+        int callerFrame = frame;
+        environment = closure;
+        currentFunction = declaration;
+        frame = base;
+        try {
+            executeStatements(declaration.body);
+        } catch (Return retVal) {
+            return retVal.value;
+        } finally {
+            environment = previous;
+            currentFunction = caller;
+            frame = callerFrame;
+            frames.pop(base);
+        }
+        return null;
+    }
+    public void executeBlock(Stmt[] statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
-            for(Stmt statement : statements) {
-                execute(statement);
-            }
+            executeStatements(statements);
         }
         finally {
             this.environment = previous;
+            environment.release();
+        }
+    }
+
+    private void executeStatements(Stmt[] statements) {
+        for(Stmt statement : statements) {
+            execute(statement);
+            if(jump != null) return;
         }
     }
     @Override
     public Object visitAssignExpr(Expr.Assign expr){
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        if(expr.slot >= 0) frames.store(frame + expr.slot, value, expr.name);
+        else assign(expr.name, expr.global, value);
         return value;
     }
+
+    // Globals the Resolver gave a slot go straight to the table, the rest through the scopes.
+    private void define(Token name, int global, Object value) {
+        if(global >= 0) globalTable.define(global, name, value);
+        else environment.define(name, value);
+    }
+
+    private void assign(Token name, int global, Object value) {
+        if(global >= 0) globalTable.assign(global, name, value);
+        else environment.assign(name, value);
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if(stmt.initializer != null)
             value = evaluate(stmt.initializer);
-        environment.define(stmt.name, value);
+        // a local in a frame is never captured, it needs no Cell
+        if(stmt.slot >= 0) frames.store(frame + stmt.slot, value, stmt.name);
+        else define(stmt.name, stmt.global, stmt.boxed ? new Cell(value) : value);
         return null;
     }
     @Override
@@ -107,7 +326,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object value = null;
         if (stmt.reInitializer != null)
             value = evaluate(stmt.reInitializer);
-        environment.assign(stmt.name, value);
+        if(stmt.slot >= 0) frames.store(frame + stmt.slot, value, stmt.name);
+        else assign(stmt.name, stmt.global, value);
         return null;
     }
     @Override
@@ -118,15 +338,61 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, new Environment(environment));
-        environment.define(stmt.name, function);
+        if(stmt.boxed) {
+            // the function captures itself, so the cell has to exist before the closure
+            environment.define(stmt.name, new Cell(null));
+            environment.assign(stmt.name, new LoxFunction(stmt, closure(stmt)));
+        } else {
+            define(stmt.name, stmt.global, new LoxFunction(stmt, closure(stmt)));
+        }
+        return null;
+    }
+
+    // The closure of a function: a copy of the bindings the Resolver found it captures, in front
+    // of the globals. Without captures (or a Resolver) it holds on to the whole scope chain.
+    private Environment closure(Stmt.Function stmt) {
+        if(stmt.captures == null) {
+            environment.capture();
+            return new Environment(environment);
+        }
+        if(stmt.captures.isEmpty()) return globals;
+        Environment closure = new Environment(globals);
+        for(Token name : stmt.captures) {
+            closure.define(name, environment.binding(name));
+        }
+        return closure;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        Object superclass = null;
+        if(stmt.superclass != null) {
+            superclass = evaluate(stmt.superclass);
+            if(!(superclass instanceof LoxClass)) {
+                throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+            }
+        }
+        define(stmt.name, stmt.global, stmt.boxed ? new Cell(null) : null);
+        Environment enclosing = environment;
+        if(superclass != null) {
+            environment = new Environment(environment);
+            environment.define(SUPER, superclass);
+        }
+        environment.capture();
+        Map<String, LoxFunction> methods = new HashMap<>();
+        for(Stmt.Function method : stmt.methods) {
+            methods.put(method.name.lexeme, new LoxFunction(method, environment, method.name.lexeme.equals("init")));
+        }
+        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
+        environment = enclosing;
+        assign(stmt.name, stmt.global, klass);
         return null;
     }
 
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        out.println(stringify(value));
         return null;
     }
 
@@ -141,8 +407,94 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
+        if(expr.slot >= 0) return frames.slots[frame + expr.slot];
+        if(expr.global >= 0) return globalTable.get(expr.global, expr.name);
         return environment.get(expr.name);
     }
+    @Override
+    public Object visitGetExpr(Expr.Get expr) {
+        return getProperty(evaluate(expr.object), expr);
+    }
+
+    @Override
+    public Object visitSetExpr(Expr.Set expr) {
+        LoxInstance instance = instanceToSet(evaluate(expr.object), expr);
+        Object value = evaluate(expr.value);
+        setProperty(instance, expr, value);
+        return value;
+    }
+
+    @Override
+    public Object visitSuperExpr(Expr.Super expr) {
+        return superMethod(environment, expr);
+    }
+
+    @Override
+    public Object visitThisExpr(Expr.This expr) {
+        return environment.get(expr.keyword);
+    }
+
+    // Reads a field or a bound method. The site caches the slot or the method it found for the
+    // shape of the instance, the next instance with that shape skips all lookups.
+    Object getProperty(Object object, Expr.Get site) {
+        if(!(object instanceof LoxInstance)) {
+            throw new RuntimeError(site.name, "Only instances have properties.");
+        }
+        LoxInstance instance = (LoxInstance) object;
+        Shape shape = instance.shape;
+        if(shape != site.cachedShape) {
+            int slot = shape.slotOf(site.name.lexeme);
+            LoxFunction method = slot < 0 ? instance.klass.findMethod(site.name.lexeme) : null;
+            if(slot < 0 && method == null) {
+                throw new RuntimeError(site.name, "Undefined property '" + site.name.lexeme + "'.");
+            }
+            site.cachedShape = shape;
+            site.cachedSlot = slot;
+            site.cachedMethod = method;
+        }
+        if(site.cachedMethod != null) return site.cachedMethod.bind(instance);
+        return instance.fields[site.cachedSlot];
+    }
+
+    LoxInstance instanceToSet(Object object, Expr.Set site) {
+        if(!(object instanceof LoxInstance)) {
+            throw new RuntimeError(site.name, "Only instances have fields.");
+        }
+        return (LoxInstance) object;
+    }
+
+    // Writes a field, the site caches the slot and the shape transition for the shape it saw.
+    void setProperty(LoxInstance instance, Expr.Set site, Object value) {
+        Shape shape = instance.shape;
+        if(shape != site.cachedShape) {
+            int slot = shape.slotOf(site.name.lexeme);
+            site.cachedNext = slot < 0 ? shape.with(site.name.lexeme) : shape;
+            site.cachedSlot = slot < 0 ? shape.size : slot;
+            site.cachedShape = shape;
+        }
+        if(site.cachedNext != shape) {
+            int capacity = instance.fields.length;
+            instance.grow(site.cachedNext);
+            memory.allocate((long) (instance.fields.length - capacity) * MemoryBudget.FIELD_BYTES, site.name);
+        }
+        instance.fields[site.cachedSlot] = value;
+    }
+
+    // 'super.method' in the given scope, the site caches the method found for the superclass
+    Object superMethod(Environment scope, Expr.Super site) {
+        LoxClass superclass = (LoxClass) scope.get(site.keyword);
+        LoxInstance instance = (LoxInstance) scope.get(LoxFunction.THIS);
+        if(superclass != site.cachedClass) {
+            LoxFunction method = superclass.findMethod(site.method.lexeme);
+            if(method == null) {
+                throw new RuntimeError(site.method, "Undefined property '" + site.method.lexeme + "'.");
+            }
+            site.cachedClass = superclass;
+            site.cachedMethod = method;
+        }
+        return site.cachedMethod.bind(instance);
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
@@ -160,6 +512,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return evaluate(expr.right);
     }
 
+    // computed the first time it is needed in the run (or iteration) of its loop
+    @Override
+    public Object visitMemoExpr(Expr.Memo expr) {
+        MemoFrame frame = memo;
+        while (frame != null && frame.loop != expr.loop) frame = frame.outer;
+        if(frame == null) return evaluate(expr.expression);
+        Object value = frame.values[expr.slot];
+        if(value == MemoFrame.UNSET) {
+            value = evaluate(expr.expression);
+            frame.values[expr.slot] = value;
+        }
+        return value;
+    }
+
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return evaluate(expr.expression);
@@ -168,14 +534,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right);
+        // a known number needs no check (see TypeInference)
+        if(expr.right.type == TypeInference.NUMBER && expr.operator.type == TokenType.MINUS) return -(double)right;
+        return unary(expr.operator, right);
+    }
 
-        switch (expr.operator.type)
+    // the semantics of the unary operators, shared with the compiled functions
+    Object unary(Token operator, Object right) {
+        switch (operator.type)
         {
             case TokenType.BANG:
                 return !isTruthy(right);
 
             case TokenType.MINUS:
-                checkNumberOperand(expr.operator,right);
+                checkNumberOperand(operator,right);
                 return -(double)right;
         }
         //unreachable
@@ -185,19 +557,47 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
-        switch (expr.operator.type)
+        if(expr.left.type == TypeInference.NUMBER && expr.right.type == TypeInference.NUMBER) {
+            return numbers(expr.operator, (double)left, (double)right);
+        }
+        return binary(expr.operator, left, right);
+    }
+
+    // the binary operators on operands TypeInference knows are numbers, without the checks
+    private Object numbers(Token operator, double left, double right) {
+        switch (operator.type)
+        {
+            case TokenType.GREATER: return left > right;
+            case TokenType.LESS: return left < right;
+            case TokenType.GREATER_EQUAL: return left >= right;
+            case TokenType.LESS_EQUAL: return left <= right;
+            case TokenType.PLUS: return left + right;
+            case TokenType.MINUS: return left - right;
+            case TokenType.SLASH:
+                if(right == 0)
+                    throw new RuntimeError(operator, "cannot divide by zero");
+                return left / right;
+            case TokenType.STAR: return left * right;
+        }
+        // equality compares the boxed values, like for any other operands
+        return binary(operator, left, right);
+    }
+
+    // the semantics of the binary operators, shared with the compiled functions
+    Object binary(Token operator, Object left, Object right) {
+        switch (operator.type)
         {
             case TokenType.GREATER:
-                checkNumberOperand(expr.operator,left, right);
+                checkNumberOperand(operator,left, right);
                 return (double)left > (double)right;
             case TokenType.LESS:
-                checkNumberOperand(expr.operator,left, right);
+                checkNumberOperand(operator,left, right);
                 return (double)left < (double)right;
             case TokenType.GREATER_EQUAL:
-                checkNumberOperand(expr.operator,left, right);
+                checkNumberOperand(operator,left, right);
                 return (double)left >= (double)right;
             case TokenType.LESS_EQUAL:
-                checkNumberOperand(expr.operator,left, right);
+                checkNumberOperand(operator,left, right);
                 return (double)left <= (double)right;
             case TokenType.EQUAL_EQUAL:
                 return isEqual(left, right);
@@ -205,30 +605,30 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 return !isEqual(left, right);
             case TokenType.PLUS:
                 if(left instanceof String && right instanceof String)
-                    return (left.toString() + right.toString());
+                    return concatenate(left.toString(), right.toString(), operator);
                 else if(left instanceof Double && right instanceof Double)
                     return (double)left + (double)right;
                 else if(left instanceof String && right instanceof Double) {
                     if(right.toString().endsWith(".0"))
                         right = right.toString().substring(0, right.toString().length()-2);
-                    return left + right.toString();
+                    return concatenate(left.toString(), right.toString(), operator);
                 }
                 else if (left instanceof Double && right instanceof String) {
                     if(left.toString().endsWith(".0"))
                         left = left.toString().substring(0, left.toString().length()-2);
-                    return left.toString() + right;
+                    return concatenate(left.toString(), right.toString(), operator);
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings");
             case TokenType.MINUS:
-                checkNumberOperand(expr.operator,left, right);
+                checkNumberOperand(operator,left, right);
                 return (double)left - (double)right;
             case TokenType.SLASH:
-                checkNumberOperand(expr.operator,left, right);
+                checkNumberOperand(operator,left, right);
                 if((double)right == 0)
-                    throw new RuntimeError(expr.operator, "cannot divide by zero");
+                    throw new RuntimeError(operator, "cannot divide by zero");
                 return (double)left / (double)right;
             case TokenType.STAR:
-                checkNumberOperand(expr.operator,left, right);
+                checkNumberOperand(operator,left, right);
                 return (double)left * (double)right;
         }
         return null;
@@ -237,19 +637,100 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
-        List<Object> args = new ArrayList<>();
+        if(callee instanceof NativeFunction function && expr.arguments.length <= NativeFunction.MAX_DIRECT) {
+            return callNative(function, expr);
+        }
+        List<Object> args = new ArrayList<>(expr.arguments.length);
         for(Expr argument : expr.arguments) {
             args.add(evaluate(argument));
         }
+        return call(callee, args, expr.paren);
+    }
+
+    // The body of the function in place of the call, when the callee is that function. The
+    // arguments are evaluated in order as for a call, the body reads them as Expr.Argument.
+    @Override
+    public Object visitInlineExpr(Expr.Inline expr) {
+        Object callee = evaluate(expr.callee);
+        if(!(callee instanceof LoxFunction function) || !function.isDeclaredBy(expr.function)) {
+            List<Object> args = new ArrayList<>(expr.arguments.length);
+            for(Expr argument : expr.arguments) {
+                args.add(evaluate(argument));
+            }
+            return call(callee, args, expr.paren);
+        }
+        Object[] args = new Object[expr.arguments.length];
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = evaluate(expr.arguments[i]);
+        }
+        budget.step(expr.paren);
+        Object[] outer = inlineArguments;
+        inlineArguments = args;
+        try {
+            return evaluate(expr.body);
+        } finally {
+            inlineArguments = outer;
+        }
+    }
+
+    @Override
+    public Object visitArgumentExpr(Expr.Argument expr) {
+        return inlineArguments[expr.index];
+    }
+
+    // natives with few arguments get them directly, without building a List
+    private Object callNative(NativeFunction function, Expr.Call expr) {
+        Expr[] arguments = expr.arguments;
+        int count = arguments.length;
+        Object a = count > 0 ? evaluate(arguments[0]) : null;
+        Object b = count > 1 ? evaluate(arguments[1]) : null;
+        Object c = count > 2 ? evaluate(arguments[2]) : null;
+        return callNative(function, expr.paren, count, a, b, c);
+    }
+
+    // shared with the compiled functions, count is at most NativeFunction.MAX_DIRECT
+    Object callNative(NativeFunction function, Token paren, int count, Object a, Object b, Object c) {
+        checkArity(function, count, paren);
+        budget.step(paren);
+        switch (count) {
+            case 0: return function.call(this, paren);
+            case 1: return function.call(this, paren, a);
+            case 2: return function.call(this, paren, a, b);
+            default: return function.call(this, paren, a, b, c);
+        }
+    }
+
+    private void checkArity(LoxCallable function, int count, Token paren) {
+        if(count != function.arity()){
+            throw new RuntimeError(paren, "Expected "+ function.arity() + "arguments but got"
+            + count + ".");
+        }
+    }
+
+    // calls a callee with evaluated arguments, shared with the compiled functions
+    Object call(Object callee, List<Object> args, Token paren) {
         if(!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes");
+            throw new RuntimeError(paren, "Can only call functions and classes");
         }
         LoxCallable function = (LoxCallable) callee;
-        if(args.size() != function.arity()){
-            throw new RuntimeError(expr.paren, "Expected "+ function.arity() + "arguments but got"
-            + args.size() + ".");
+        checkArity(function, args.size(), paren);
+        budget.step(paren);
+        if(function instanceof NativeFunction nativeFunction) {
+            return nativeFunction.call(this, paren, args);
+        }
+        budget.enterCall(paren);
+        memory.check(paren);
+        try {
+            return function.call(this, args);
+        } finally {
+            budget.exitCall();
         }
-        return function.call(this, args);
+    }
+
+    // the concatenation, checked against the memory cap before the new string is built
+    private String concatenate(String left, String right, Token operator) {
+        memory.reserve(MemoryBudget.STRING_BYTES + left.length() + right.length(), operator);
+        return left + right;
     }
 
     private void checkNumberOperand(Token operator, Object... obj)
@@ -263,20 +744,38 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             throw new RuntimeError(operator, "Operands must be a number");
         }
     }
-    private boolean isEqual(Object left, Object right) {
+    boolean isEqual(Object left, Object right) {
        if(left == null && right == null) return true;
        if(left == null) return false;
        return left.equals(right);
     }
 
-    private boolean isTruthy(Object obj)
+    boolean isTruthy(Object obj)
     {
         if(obj == null) return false;
         if(obj instanceof Boolean) return (boolean)obj;
         return true;
     }
     private Object evaluate(final Expr expr) {
-        return expr.accept(this);
+        if(visitorDispatch) return expr.accept(this);
+        switch (expr.kind) {
+            case Expr.ASSIGN: return visitAssignExpr((Expr.Assign) expr);
+            case Expr.BINARY: return visitBinaryExpr((Expr.Binary) expr);
+            case Expr.CALL: return visitCallExpr((Expr.Call) expr);
+            case Expr.GET: return visitGetExpr((Expr.Get) expr);
+            case Expr.GROUPING: return evaluate(((Expr.Grouping) expr).expression);
+            case Expr.LITERAL: return ((Expr.Literal) expr).value;
+            case Expr.LOGICAL: return visitLogicalExpr((Expr.Logical) expr);
+            case Expr.SET: return visitSetExpr((Expr.Set) expr);
+            case Expr.SUPER: return visitSuperExpr((Expr.Super) expr);
+            case Expr.THIS: return visitThisExpr((Expr.This) expr);
+            case Expr.UNARY: return visitUnaryExpr((Expr.Unary) expr);
+            case Expr.VARIABLE: return visitVariableExpr((Expr.Variable) expr);
+            case Expr.MEMO: return visitMemoExpr((Expr.Memo) expr);
+            case Expr.INLINE: return visitInlineExpr((Expr.Inline) expr);
+            case Expr.ARGUMENT: return inlineArguments[((Expr.Argument) expr).index];
+            default: throw new IllegalStateException("Unknown expression kind " + expr.kind);
+        }
     }
 
 }
@@ -1,91 +1,236 @@
 package com.lox;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
 
 public class Lox
 {
-    public static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    public static Interpreter interpreter;
+    // calls + loop iterations of a function before --jit compiles it
+    static final int DEFAULT_JIT_THRESHOLD = 1000;
     public static void main(String[] args) throws IOException
     {
-        if(args.length > 1) {
-            System.out.println("Usage: jlox <path to lox file>");
-            System.exit(64);
-        } else if(args.length == 1) {
-            runFile(args[0]);
+        if(args.length >= 1 && args[0].equals("--daemon")) {
+            LoxDaemon.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        String path = null;
+        long maxSteps = 0;
+        long maxMillis = 0;
+        int maxCallDepth = 0;
+        long maxMemory = 0;
+        int jitThreshold = 0;
+        int maxErrors = ErrorReporter.DEFAULT_MAX_ERRORS;
+        boolean visitorDispatch = false;
+        boolean optimize = true;
+        boolean dumpOptimizations = false;
+        int inlineSize = Inliner.DEFAULT_MAX_SIZE;
+        int inlineDepth = Inliner.DEFAULT_MAX_DEPTH;
+        boolean dumpTypes = false;
+        AstPrinter.Mode dumpAst = null;
+        String record = null;
+        String replay = null;
+        String coverage = null;
+        int profile = 0;
+        try {
+            for(String arg : args) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                if(arg.startsWith("--max-steps=")) maxSteps = Long.parseLong(value);
+                else if(arg.startsWith("--timeout-ms=")) maxMillis = Long.parseLong(value);
+                else if(arg.startsWith("--max-depth=")) maxCallDepth = Integer.parseInt(value);
+                else if(arg.startsWith("--max-memory-mb=")) maxMemory = Long.parseLong(value) << 20;
+                else if(arg.equals("--jit")) jitThreshold = DEFAULT_JIT_THRESHOLD;
+                else if(arg.startsWith("--jit-threshold=")) jitThreshold = Integer.parseInt(value);
+                else if(arg.startsWith("--max-errors=")) maxErrors = Integer.parseInt(value);
+                else if(arg.equals("--dispatch=visitor")) visitorDispatch = true;
+                else if(arg.equals("--dispatch=switch")) visitorDispatch = false;
+                else if(arg.equals("--no-optimize")) optimize = false;
+                else if(arg.equals("--dump-opt")) dumpOptimizations = true;
+                else if(arg.startsWith("--inline-size=")) inlineSize = Integer.parseInt(value);
+                else if(arg.startsWith("--inline-depth=")) inlineDepth = Integer.parseInt(value);
+                else if(arg.equals("--dump-types")) dumpTypes = true;
+                else if(arg.equals("--dump-ast")) dumpAst = AstPrinter.Mode.SEXPR;
+                else if(arg.equals("--dump-ast=json")) dumpAst = AstPrinter.Mode.JSON;
+                else if(arg.startsWith("--record=")) record = value;
+                else if(arg.startsWith("--replay=")) replay = value;
+                else if(arg.startsWith("--coverage=")) coverage = value;
+                else if(arg.equals("--profile")) profile = Profiler.DEFAULT_INTERVAL_MILLIS;
+                else if(arg.startsWith("--profile=")) profile = Integer.parseInt(value);
+                else if(arg.startsWith("--") || path != null) usage();
+                else path = arg;
+            }
+        } catch (NumberFormatException err) {
+            usage();
+        }
+        // a limit below 0 is a mistake, not no limit (that is 0)
+        if(maxSteps < 0 || maxMillis < 0 || maxCallDepth < 0 || maxMemory < 0) usage();
+        // at least one error is shown, or a valid source would stop before it is parsed
+        if(maxErrors < 1) usage();
+        // a recording is of a script, a replay runs the script it recorded
+        if(record != null && (path == null || replay != null) || replay != null && path != null) usage();
+        // coverage is of a script, a profile also of a replay
+        if(coverage != null && (path == null || record != null) || profile > 0 && path == null && replay == null) usage();
+        // compiled code doesn't go through the statements a recording or the coverage follows
+        if(record != null || replay != null || coverage != null) jitThreshold = 0;
+        // nor do inlined calls and the statements the Optimizer removed
+        if(coverage != null) optimize = false;
+        interpreter = new Interpreter(System.out, new ErrorReporter(System.err, maxErrors), new MemoryBudget(maxMemory));
+        interpreter.budget = new ExecutionBudget(maxSteps, maxMillis, maxCallDepth);
+        interpreter.jitThreshold = jitThreshold;
+        interpreter.visitorDispatch = visitorDispatch;
+        interpreter.optimize = optimize;
+        interpreter.dumpOptimizations = dumpOptimizations;
+        interpreter.inlineSize = inlineSize;
+        interpreter.inlineDepth = inlineDepth;
+        interpreter.dumpTypes = dumpTypes;
+        interpreter.dumpAst = dumpAst;
+        if(coverage != null) interpreter.coverage = new Coverage();
+        if(profile > 0) {
+            interpreter.profiler = new Profiler(profile);
+            interpreter.profiler.start();
+        }
+        if(replay != null) {
+            runRecording(Recording.replay(Paths.get(replay)));
+        } else if(record != null) {
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            runRecording(Recording.record(Paths.get(record), new String(bytes, Charset.defaultCharset())));
+        } else if(coverage != null) {
+            runCovered(path, coverage);
+        } else if(path != null) {
+            runFile(path);
         } else {
             runPrompt();
         }
     }
 
+    private static void usage()
+    {
+        System.out.println("Usage: jlox [--max-steps=N] [--timeout-ms=N] [--max-depth=N] [--max-memory-mb=N]"
+                + " [--jit | --jit-threshold=N] [--max-errors=N]"
+                + " [--dispatch=switch|visitor] [--no-optimize] [--dump-opt]"
+                + " [--inline-size=N] [--inline-depth=N] [--dump-types]"
+                + " [--dump-ast[=json]] [--record=<file>]"
+                + " [--coverage=<lcov file>] [--profile[=ms]] [path to lox file]");
+        System.out.println("       jlox --replay=<file> [options]");
+        System.out.println("       jlox --daemon [options]");
+        System.exit(64);
+    }
+
     // start interpreting the whole file/code
     private static void runFile(String path) throws IOException
     {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        if(hadError) System.exit(65);
-        if(hadRuntimeError) System.exit(70);
+        run(new String(bytes, Charset.defaultCharset()), interpreter);
+        finish();
+    }
+
+    // reports the profile of the run and exits with the code of its errors
+    private static void finish()
+    {
+        if(interpreter.profiler != null) interpreter.profiler.report(interpreter.reporter.err);
+        int exitCode = interpreter.reporter.exitCode();
+        if(exitCode != 0) System.exit(exitCode);
+    }
+
+    // runs the file and writes the coverage of the run, also when it failed
+    private static void runCovered(String path, String output) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(Paths.get(path));
+        run(new String(bytes, Charset.defaultCharset()), interpreter);
+        interpreter.coverage.write(Paths.get(output), Paths.get(path).toAbsolutePath().toString());
+        finish();
     }
 
-    // run the code more interactively prompt by prompt
+    // runs the source of a recording while it is recorded or replayed
+    private static void runRecording(Recording recording) throws IOException
+    {
+        interpreter.recording = recording;
+        recording.install(interpreter.globalTable);
+        long start = System.nanoTime();
+        run(recording.source, interpreter);
+        recording.finish(interpreter.reporter.err, System.nanoTime() - start);
+        finish();
+    }
+
+    // run the code more interactively prompt by prompt, an entry can span several lines
     private static void runPrompt() throws IOException
     {
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        Repl repl = new Repl(interpreter);
         while(true)
         {
-            System.out.print("jlox > ");
+            System.out.print(repl.isPending() ? "  ... > " : "jlox > ");
             String line = reader.readLine();
-            if(Objects.equals(line, "quit"))
+            if(line == null)
                 System.exit(0);
-            if(line ==  null || line.trim().isEmpty())
+            if(!repl.isPending() && Objects.equals(line, "quit"))
+                System.exit(0);
+            if(!repl.isPending() && line.trim().isEmpty())
                 continue;
-            run(line);
-            hadError = false;
+            repl.feed(line);
         }
     }
 
-    private static void run(String source)
+    // the parsed statements optimized and resolved, ready for the interpreter
+    static List<Stmt> prepare(List<Stmt> statements, Interpreter interpreter)
     {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-
-        if(hadError) return;
-        //System.out.println(new AstPrinter().print(expression));
-        interpreter.interpret(statements);
-
+        if(interpreter.optimize && interpreter.inlineSize > 0 && interpreter.inlineDepth > 0) {
+            Inliner inliner = new Inliner(interpreter.inlineSize, interpreter.inlineDepth);
+            statements = inliner.inline(statements);
+            if(interpreter.dumpOptimizations) inliner.dump(interpreter.reporter.err);
+        }
+        if(interpreter.optimize) {
+            Optimizer optimizer = new Optimizer();
+            statements = optimizer.optimize(statements);
+            if(interpreter.dumpOptimizations) optimizer.dump(interpreter.reporter.err);
+        }
+        new Resolver(interpreter.globalTable).resolve(statements);
+        if(interpreter.optimize) {
+            TypeInference inference = new TypeInference();
+            inference.infer(statements);
+            if(interpreter.dumpTypes) inference.dump(interpreter.reporter.err);
+        }
+        if(interpreter.coverage != null) interpreter.coverage.number(statements);
+        if(interpreter.dumpAst != null) dumpAst(statements, interpreter);
+        return statements;
     }
 
-    static void error(int line, String message)
-    {
-        report(line, " ", message);
-    }
-    private static void report(int line, String where, String message)
+    // the statements as the interpreter gets them, written out while they are walked
+    private static void dumpAst(List<Stmt> statements, Interpreter interpreter)
     {
-        System.err.println("[line " + line + "] Error " + where + ": " + message);
-        hadError = true;
-    }
-    static void error(Token token, String message)
-    {
-        if(token.type == TokenType.EOF){
-            report(token.line, "at end"+" ", message);
-        }
-        else {
-            report(token.line, "at '" + token.lexeme + "'"+" ", message);
+        Writer out = new BufferedWriter(new OutputStreamWriter(interpreter.reporter.err));
+        try {
+            new AstPrinter(interpreter.dumpAst).print(statements, out);
+            out.flush();
+        } catch (IOException err) {
+            throw new UncheckedIOException(err);
         }
     }
 
-    public static void runtimeError(RuntimeError err) {
-        System.err.println("[Line " + err.token.line + "]" + "\n" + err.getMessage() );
-        hadRuntimeError = true;
+    // runs a whole program, the errors end up in the reporter of the interpreter
+    static void run(String source, Interpreter interpreter)
+    {
+        ErrorReporter reporter = interpreter.reporter;
+        Scanner scanner = new Scanner(source, reporter);
+        List<Token> tokens = scanner.scanTokens();
+        Parser parser = new Parser(tokens, reporter);
+        List<Stmt> statements = parser.parse();
+        reporter.flush();
+
+        if(reporter.hadError) return;
+        //System.out.println(new AstPrinter().print(expression));
+        interpreter.interpret(prepare(statements, interpreter));
+
     }
 }
@@ -0,0 +1,50 @@
+package com.lox;
+
+import java.util.List;
+import java.util.Map;
+
+public class LoxClass implements LoxCallable {
+    final String name;
+    final LoxClass superclass;
+    private final Map<String, LoxFunction> methods;
+    // the methods can't change after the class is created, so init is looked up once
+    private final LoxFunction initializer;
+    // instances of this class start with this shape
+    final Shape rootShape = new Shape();
+
+    LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+        this.name = name;
+        this.superclass = superclass;
+        this.methods = methods;
+        this.initializer = findMethod("init");
+    }
+
+    // looks for a method along the superclass chain, null when there is none
+    LoxFunction findMethod(String name) {
+        for(LoxClass klass = this; klass != null; klass = klass.superclass) {
+            LoxFunction method = klass.methods.get(name);
+            if(method != null) return method;
+        }
+        return null;
+    }
+
+    @Override
+    public int arity() {
+        if(initializer == null) return 0;
+        return initializer.arity();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        LoxInstance instance = new LoxInstance(this);
+        if(initializer != null) {
+            initializer.bind(instance).call(interpreter, arguments);
+        }
+        return instance;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,274 @@
+package com.lox;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+    The daemon keeps one warm JVM alive and runs the scripts sent to it over a local socket,
+    so a script doesn't pay for the JVM start up and the JIT warm up every time.
+    Every job gets its own Interpreter and ErrorReporter, nothing is shared between jobs
+    except the native globals.
+
+    Protocol, one job per connection, all text in UTF-8:
+      request   "RUN <path>\n"                  run a script file of the daemon's machine
+                "EVAL <byte count>\n<source>"   run the source that follows, at most MAX_EVAL_BYTES
+      response  "1 <line>\n"  a line the script printed on stdout
+                "2 <line>\n"  a line of stderr
+                "exit <code>\n" last line, 0, 65 or 70 like runFile, 64 for a bad request,
+                              74 when the script can't be read, 75 when the daemon is busy
+*/
+class LoxDaemon {
+    static final int DEFAULT_PORT = 7979;
+    private static final long WATCHDOG_GRACE_MILLIS = 1000;
+    // the biggest source an EVAL may send
+    static final int MAX_EVAL_BYTES = 16 << 20;
+
+    private final ServerSocketChannel server;
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "jlox-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long timeoutMillis;
+    private final long maxSteps;
+    private final int maxCallDepth;
+    private final long maxMemory;
+    private final int jitThreshold;
+
+    LoxDaemon(ServerSocketChannel server, int jobs, int queue, long timeoutMillis, long maxSteps, int maxCallDepth,
+              long maxMemory, int jitThreshold) {
+        this.server = server;
+        this.timeoutMillis = timeoutMillis;
+        this.maxSteps = maxSteps;
+        this.maxCallDepth = maxCallDepth;
+        this.maxMemory = maxMemory;
+        this.jitThreshold = jitThreshold;
+        this.workers = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue));
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        String socket = null;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        int queue = 64;
+        long timeoutMillis = 30_000;
+        long maxSteps = 0;
+        int maxCallDepth = 0;
+        long maxMemory = 0;
+        int jitThreshold = 0;
+        try {
+            for(String arg : args) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                if(arg.startsWith("--port=")) port = Integer.parseInt(value);
+                else if(arg.startsWith("--socket=")) socket = value;
+                else if(arg.startsWith("--jobs=")) jobs = Integer.parseInt(value);
+                else if(arg.startsWith("--queue=")) queue = Integer.parseInt(value);
+                else if(arg.startsWith("--timeout-ms=")) timeoutMillis = Long.parseLong(value);
+                else if(arg.startsWith("--max-steps=")) maxSteps = Long.parseLong(value);
+                else if(arg.startsWith("--max-depth=")) maxCallDepth = Integer.parseInt(value);
+                else if(arg.startsWith("--max-memory-mb=")) maxMemory = Long.parseLong(value) << 20;
+                else if(arg.equals("--jit")) jitThreshold = Lox.DEFAULT_JIT_THRESHOLD;
+                else if(arg.startsWith("--jit-threshold=")) jitThreshold = Integer.parseInt(value);
+                else usage();
+            }
+        } catch (NumberFormatException err) {
+            usage();
+        }
+        // the watchdog needs a time limit, the other limits are off at 0 and never below
+        if(timeoutMillis < 1 || maxSteps < 0 || maxCallDepth < 0 || maxMemory < 0) usage();
+
+        ServerSocketChannel server;
+        if(socket != null) {
+            Path path = Path.of(socket);
+            Files.deleteIfExists(path);
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(path));
+        } else {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+        System.out.println("jlox daemon listening on " + server.getLocalAddress() + " with " + jobs + " jobs");
+        new LoxDaemon(server, jobs, queue, timeoutMillis, maxSteps, maxCallDepth, maxMemory, jitThreshold).serve();
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox --daemon [--port=N | --socket=<path>] [--jobs=N] [--queue=N] [--timeout-ms=N]"
+                + " [--max-steps=N] [--max-depth=N] [--max-memory-mb=N] [--jit | --jit-threshold=N]");
+        System.exit(64);
+    }
+
+    void serve() throws IOException {
+        while(true) {
+            SocketChannel client = server.accept();
+            try {
+                workers.execute(() -> handle(client));
+            } catch (RejectedExecutionException err) {
+                Connection connection = new Connection(client);
+                connection.line('2', "jlox daemon is busy, try again later");
+                connection.exit(75);
+            }
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        Connection connection = new Connection(client);
+        try {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(client));
+            String request = readLine(in);
+            String source;
+            if(request.startsWith("RUN ")) {
+                try {
+                    byte[] bytes = Files.readAllBytes(Path.of(request.substring(4)));
+                    source = new String(bytes, Charset.defaultCharset());
+                } catch (IOException err) {
+                    connection.line('2', "Cannot read " + request.substring(4) + ": " + err.getMessage());
+                    connection.exit(74);
+                    return;
+                }
+            } else if(request.startsWith("EVAL ")) {
+                int length = Integer.parseInt(request.substring(5).trim());
+                if(length < 0 || length > MAX_EVAL_BYTES) {
+                    connection.line('2', "Bad request: EVAL takes 0 to " + MAX_EVAL_BYTES + " bytes, not " + length);
+                    connection.exit(64);
+                    return;
+                }
+                source = new String(in.readNBytes(length), StandardCharsets.UTF_8);
+            } else {
+                connection.line('2', "Unknown request '" + request + "'");
+                connection.exit(64);
+                return;
+            }
+            connection.exit(runJob(source, connection));
+        } catch (IOException | IllegalArgumentException err) {
+            connection.line('2', "Bad request: " + err.getMessage());
+            connection.exit(64);
+        }
+    }
+
+    private int runJob(String source, Connection connection) {
+        PrintStream stdout = new PrintStream(new LineStream(connection, '1'), true, StandardCharsets.UTF_8);
+        PrintStream stderr = new PrintStream(new LineStream(connection, '2'), true, StandardCharsets.UTF_8);
+        Interpreter interpreter = new Interpreter(stdout, new ErrorReporter(stderr), new MemoryBudget(maxMemory));
+        // the budget stops the job with a runtime error at the time limit, the watchdog is
+        // only there for a job stuck where the budget isn't checked
+        interpreter.budget = new ExecutionBudget(maxSteps, timeoutMillis, maxCallDepth);
+        interpreter.jitThreshold = jitThreshold;
+        Thread worker = Thread.currentThread();
+        ScheduledFuture<?> timer = watchdog.schedule(() -> {
+            connection.line('2', "Job timed out after " + timeoutMillis + " ms");
+            connection.exit(70);
+            worker.interrupt();
+        }, Math.min(timeoutMillis, Long.MAX_VALUE - WATCHDOG_GRACE_MILLIS) + WATCHDOG_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            Lox.run(source, interpreter);
+        } catch (StackOverflowError err) {
+            interpreter.reporter.err.println("Stack overflow.");
+            interpreter.reporter.hadRuntimeError = true;
+        } catch (RuntimeException err) {
+            // a failure of the interpreter itself must not take the worker down
+            interpreter.reporter.err.println("Internal error: " + err);
+            interpreter.reporter.hadRuntimeError = true;
+        } finally {
+            timer.cancel(false);
+            Thread.interrupted();
+            stdout.close();
+            stderr.close();
+        }
+        return interpreter.reporter.exitCode();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    // The response side of one connection. The lines of the job and of the watchdog are
+    // written under one lock, and nothing is written once the exit line went out.
+    private static class Connection {
+        private final SocketChannel channel;
+        private final OutputStream out;
+        private boolean done = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.out = Channels.newOutputStream(channel);
+        }
+
+        synchronized void line(char stream, String text) {
+            if(done) return;
+            try {
+                out.write((stream + " " + text + "\n").getBytes(StandardCharsets.UTF_8));
+            } catch (IOException err) {
+                done = true;
+            }
+        }
+
+        synchronized void exit(int code) {
+            if(done) return;
+            try {
+                out.write(("exit " + code + "\n").getBytes(StandardCharsets.UTF_8));
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            done = true;
+        }
+    }
+
+    // Cuts what a PrintStream writes into lines of the protocol.
+    private static class LineStream extends OutputStream {
+        private final Connection connection;
+        private final char stream;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineStream(Connection connection, char stream) {
+            this.connection = connection;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) {
+            if(b == '\n') {
+                connection.line(stream, line.toString(StandardCharsets.UTF_8));
+                line.reset();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public void close() {
+            if(line.size() > 0) {
+                connection.line(stream, line.toString(StandardCharsets.UTF_8));
+                line.reset();
+            }
+        }
+    }
+}
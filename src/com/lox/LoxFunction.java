@@ -4,27 +4,79 @@ package com.lox;
 import java.util.List;
 
 public class LoxFunction implements LoxCallable{
+    // name of the instance in the scope that bind() puts around a method
+    static final Token THIS = new Token(TokenType.THIS, "this", null, -1);
+
     private final Stmt.Function declaration;
     private final Environment closure;
+    private final boolean isInitializer;
     LoxFunction(Stmt.Function declaration, Environment closure) {
+        this(declaration, closure, false);
+    }
+    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
         this.declaration = declaration;
         this.closure = closure;
+        this.isInitializer = isInitializer;
+    }
+
+    // the method with 'this' bound to the instance
+    LoxFunction bind(LoxInstance instance) {
+        Environment env = new Environment(closure);
+        env.define(THIS, instance);
+        return new LoxFunction(declaration, env, isInitializer);
+    }
+    // whether the function was made from this declaration
+    boolean isDeclaredBy(Stmt.Function declaration) {
+        return this.declaration == declaration;
     }
     @Override
     public int arity() {
-        return declaration.params.size();
+        return declaration.params.length;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        Profiler profiler = interpreter.profiler;
+        if(profiler != null) profiler.enter(declaration);
+        try {
+            Object result = invoke(interpreter, arguments);
+            // an initializer always gives back the instance, whatever it returned
+            if(isInitializer) return closure.get(THIS);
+            return result;
+        } finally {
+            if(profiler != null) profiler.exit();
+        }
+    }
+
+    private Object invoke(Interpreter interpreter, List<Object> arguments) {
+        if(declaration.compiled != null) {
+            return declaration.compiled.call(interpreter, closure, arguments);
+        }
+        // tiering: once hot enough the declaration gets compiled, for every closure made from it
+        if(interpreter.jitThreshold > 0 && !declaration.interpretOnly
+                && ++declaration.hotness >= interpreter.jitThreshold) {
+            declaration.compiled = FunctionCompiler.compile(declaration);
+            if(declaration.compiled != null) {
+                return declaration.compiled.call(interpreter, closure, arguments);
+            }
+        }
+        if(declaration.frameSlots >= 0) {
+            return interpreter.invokeInFrame(declaration, closure, arguments);
+        }
         Environment env = new Environment(closure);
         for (int i = 0; i < arguments.size(); ++i) {
-            env.define(declaration.params.get(i), arguments.get(i));
+            Object argument = arguments.get(i);
+            boolean boxed = declaration.boxedParams != null && declaration.boxedParams[i];
+            env.define(declaration.params[i], boxed ? new Cell(argument) : argument);
         }
+        Stmt.Function caller = interpreter.currentFunction;
+        interpreter.currentFunction = declaration;
         try {
             interpreter.executeBlock(declaration.body, env);
         } catch (Return retVal) {
             return retVal.value;
+        } finally {
+            interpreter.currentFunction = caller;
         }
         return null;
     }
@@ -0,0 +1,30 @@
+package com.lox;
+
+import java.util.Arrays;
+
+// An instance keeps its fields in an array laid out by its Shape.
+class LoxInstance {
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    final LoxClass klass;
+    Shape shape;
+    Object[] fields = NO_FIELDS;
+
+    LoxInstance(LoxClass klass) {
+        this.klass = klass;
+        this.shape = klass.rootShape;
+    }
+
+    // moves the instance to a shape with one field more
+    void grow(Shape next) {
+        if(next.size > fields.length) {
+            fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+        }
+        shape = next;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
@@ -0,0 +1,31 @@
+package com.lox;
+
+// Math on numbers, straight on the doubles of java.lang.Math.
+final class MathModule {
+    private MathModule() {}
+
+    @LoxNative("sqrt")
+    static double sqrt(double x) {
+        return Math.sqrt(x);
+    }
+
+    @LoxNative("abs")
+    static double abs(double x) {
+        return Math.abs(x);
+    }
+
+    @LoxNative("floor")
+    static double floor(double x) {
+        return Math.floor(x);
+    }
+
+    @LoxNative("ceil")
+    static double ceil(double x) {
+        return Math.ceil(x);
+    }
+
+    @LoxNative("pow")
+    static double pow(double base, double exponent) {
+        return Math.pow(base, exponent);
+    }
+}
@@ -0,0 +1,86 @@
+package com.lox;
+
+/*
+    Approximate accounting of the memory a script keeps alive, with an optional cap.
+    Every Environment charges its own size and the size of the values bound in it, and gives
+    it all back when its scope ends, unless a closure captured it. A string concatenation is
+    checked against the cap before the new string is built, so a runaway script fails with a
+    RuntimeError instead of running the JVM out of memory.
+    Instances are counted shallow: the object and its field array, not what the fields hold.
+    The sizes are rough numbers for a 64 bit JVM with compressed references.
+    A cap of 0 means no cap.
+*/
+class MemoryBudget {
+    // Environment + its HashMap and first table
+    static final long ENVIRONMENT_BYTES = 96;
+    // HashMap.Node + its table slot
+    static final long BINDING_BYTES = 40;
+    // String + byte[] headers, the chars are added on top
+    static final long STRING_BYTES = 40;
+    // boxed Double
+    static final long NUMBER_BYTES = 16;
+    // LoxInstance without its fields, a field slot
+    static final long INSTANCE_BYTES = 32;
+    static final long FIELD_BYTES = 8;
+    // Cell, its value is added on top
+    static final long CELL_BYTES = 16;
+    // NumberArray + double[] header, the elements are added on top
+    static final long ARRAY_BYTES = 32;
+
+    final long maxBytes;
+    private final long limit;
+    private long used = 0;
+
+    MemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.limit = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    }
+
+    static MemoryBudget unlimited() {
+        return new MemoryBudget(0);
+    }
+
+    long used() {
+        return used;
+    }
+
+    // adds (or gives back with negative bytes) without checking, for places without a token
+    void charge(long bytes) {
+        used += bytes;
+    }
+
+    void allocate(long bytes, Token at) {
+        used += bytes;
+        check(at);
+    }
+
+    // checks that bytes more could be allocated, without allocating them
+    void reserve(long bytes, Token at) {
+        if(!fits(bytes)) {
+            throw new RuntimeError(at, "Memory limit of " + maxBytes + " bytes exceeded");
+        }
+    }
+
+    boolean fits(long bytes) {
+        return used + bytes <= limit;
+    }
+
+    void check(Token at) {
+        if(used > limit) {
+            throw new RuntimeError(at, "Memory limit of " + maxBytes + " bytes exceeded");
+        }
+    }
+
+    static long sizeOf(Object value) {
+        if(value instanceof String) return STRING_BYTES + ((String) value).length();
+        if(value instanceof Double) return NUMBER_BYTES;
+        if(value instanceof NumberArray) return arrayBytes(((NumberArray) value).values.length);
+        if(value instanceof Cell) return CELL_BYTES + sizeOf(((Cell) value).value);
+        if(value instanceof LoxInstance) return INSTANCE_BYTES + ((LoxInstance) value).fields.length * FIELD_BYTES;
+        return 0;
+    }
+
+    static long arrayBytes(int length) {
+        return ARRAY_BYTES + 8L * length;
+    }
+}
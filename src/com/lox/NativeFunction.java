@@ -0,0 +1,195 @@
+package com.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/*
+    A @LoxNative static method bound as a Lox callable.
+    The method is adapted once into a MethodHandle of type (Interpreter, Object...)Object: each
+    argument is checked and unboxed to the parameter type by a filter, the result is boxed back.
+    The Interpreter calls natives with up to MAX_DIRECT arguments through call(..., a, b, c)
+    with invokeExact, without a List of arguments and without going through LoxCallable.
+*/
+final class NativeFunction implements LoxCallable {
+    static final int MAX_DIRECT = 3;
+
+    private static final MethodHandle NUMBER;
+    private static final MethodHandle INTEGER;
+    private static final MethodHandle BOOLEAN;
+    private static final MethodHandle STRING;
+    private static final MethodHandle CALLABLE;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            NUMBER = lookup.findStatic(NativeFunction.class, "number",
+                    MethodType.methodType(double.class, Object.class, String.class));
+            INTEGER = lookup.findStatic(NativeFunction.class, "integer",
+                    MethodType.methodType(int.class, Object.class, String.class));
+            BOOLEAN = lookup.findStatic(NativeFunction.class, "bool",
+                    MethodType.methodType(boolean.class, Object.class, String.class));
+            STRING = lookup.findStatic(NativeFunction.class, "string",
+                    MethodType.methodType(String.class, Object.class, String.class));
+            CALLABLE = lookup.findStatic(NativeFunction.class, "callable",
+                    MethodType.methodType(LoxCallable.class, Object.class, String.class));
+        } catch (ReflectiveOperationException err) {
+            throw new ExceptionInInitializerError(err);
+        }
+    }
+
+    // thrown by the argument filters, turned into a RuntimeError at the call like any
+    // IllegalArgumentException of a native
+    private static final class ArgumentError extends IllegalArgumentException {
+        ArgumentError(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    final String name;
+    private final int arity;
+    // (Interpreter, Object x arity)Object
+    private final MethodHandle handle;
+    // (Interpreter, Object[])Object, for calls with a List
+    private final MethodHandle spread;
+
+    private NativeFunction(String name, int arity, MethodHandle handle) {
+        this.name = name;
+        this.arity = arity;
+        this.handle = handle;
+        this.spread = handle.asSpreader(Object[].class, arity);
+    }
+
+    static NativeFunction bind(String name, Method method, MethodHandles.Lookup lookup) {
+        MethodHandle handle;
+        try {
+            handle = lookup.unreflect(method);
+        } catch (IllegalAccessException err) {
+            throw new IllegalStateException("Native " + name + " is not accessible", err);
+        }
+        Class<?>[] params = method.getParameterTypes();
+        int first = params.length > 0 && params[0] == Interpreter.class ? 1 : 0;
+        if(first == 0) handle = MethodHandles.dropArguments(handle, 0, Interpreter.class);
+        int arity = params.length - first;
+        for (int i = 0; i < arity; ++i) {
+            String what = "Argument " + (i + 1) + " of " + name;
+            handle = MethodHandles.filterArguments(handle, i + 1, filter(params[first + i], what, name));
+        }
+        Class<?> result = method.getReturnType();
+        if(result == int.class || result == long.class || result == float.class) {
+            // Lox only has doubles
+            handle = handle.asType(handle.type().changeReturnType(double.class));
+        }
+        MethodType generic = MethodType.genericMethodType(arity + 1).changeParameterType(0, Interpreter.class);
+        return new NativeFunction(name, arity, handle.asType(generic));
+    }
+
+    // (Object)type, checking the Lox value on the way
+    private static MethodHandle filter(Class<?> type, String what, String name) {
+        if(type == Object.class) return MethodHandles.identity(Object.class);
+        if(type == double.class) return MethodHandles.insertArguments(NUMBER, 1, what);
+        if(type == int.class) return MethodHandles.insertArguments(INTEGER, 1, what);
+        if(type == boolean.class) return MethodHandles.insertArguments(BOOLEAN, 1, what);
+        if(type == String.class) return MethodHandles.insertArguments(STRING, 1, what);
+        if(type == LoxCallable.class) return MethodHandles.insertArguments(CALLABLE, 1, what);
+        throw new IllegalStateException("Native " + name + " has a parameter of unsupported type " + type.getName());
+    }
+
+    private static double number(Object value, String what) {
+        if(value instanceof Double number) return number;
+        throw new ArgumentError(what + " must be a number");
+    }
+
+    // a whole number an int holds, never rounded or clamped
+    private static int integer(Object value, String what) {
+        double number = number(value, what);
+        if(number != Math.rint(number) || number < Integer.MIN_VALUE || number > Integer.MAX_VALUE) {
+            throw new ArgumentError(what + " must be an integer");
+        }
+        return (int) number;
+    }
+
+    private static boolean bool(Object value, String what) {
+        if(value instanceof Boolean bool) return bool;
+        throw new ArgumentError(what + " must be a boolean");
+    }
+
+    private static String string(Object value, String what) {
+        if(value instanceof String string) return string;
+        throw new ArgumentError(what + " must be a string");
+    }
+
+    private static LoxCallable callable(Object value, String what) {
+        if(value instanceof LoxCallable callable) return callable;
+        throw new ArgumentError(what + " must be a function");
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return call(interpreter, new Token(TokenType.IDENTIFIER, name, null, -1), arguments);
+    }
+
+    Object call(Interpreter interpreter, Token paren, List<Object> arguments) {
+        try {
+            return (Object) spread.invokeExact(interpreter, arguments.toArray());
+        } catch (Throwable err) {
+            throw failure(err, paren);
+        }
+    }
+
+    Object call(Interpreter interpreter, Token paren) {
+        try {
+            return (Object) handle.invokeExact(interpreter);
+        } catch (Throwable err) {
+            throw failure(err, paren);
+        }
+    }
+
+    Object call(Interpreter interpreter, Token paren, Object a) {
+        try {
+            return (Object) handle.invokeExact(interpreter, a);
+        } catch (Throwable err) {
+            throw failure(err, paren);
+        }
+    }
+
+    Object call(Interpreter interpreter, Token paren, Object a, Object b) {
+        try {
+            return (Object) handle.invokeExact(interpreter, a, b);
+        } catch (Throwable err) {
+            throw failure(err, paren);
+        }
+    }
+
+    Object call(Interpreter interpreter, Token paren, Object a, Object b, Object c) {
+        try {
+            return (Object) handle.invokeExact(interpreter, a, b, c);
+        } catch (Throwable err) {
+            throw failure(err, paren);
+        }
+    }
+
+    // Lox errors pass through, bad arguments and failures of the Java code become RuntimeErrors
+    private RuntimeException failure(Throwable err, Token paren) {
+        if(err instanceof Error error) throw error;
+        if(err instanceof RuntimeError runtimeError) return runtimeError;
+        if(err instanceof IllegalArgumentException) return new RuntimeError(paren, err.getMessage());
+        return new RuntimeError(paren, "Native function " + name + " failed: " + err);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,61 @@
+package com.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Turns the @LoxNative static methods of native modules into Lox globals.
+    The modules shipped with jlox are listed in MODULES, more can be added without touching the
+    Interpreter by naming their classes in the jlox.natives system property (comma separated):
+        java -Djlox.natives=org.example.StringModule -cp ... com.lox.Lox script.jlox
+    A module is any class with static methods annotated @LoxNative("name"). Parameters may be
+    double, int, boolean, String, LoxCallable or Object, a first parameter of type Interpreter gets
+    the running Interpreter. Return values are converted the same way, void returns nil.
+    A native reports bad input by throwing an IllegalArgumentException, the message becomes a
+    RuntimeError at the call.
+    A script may declare a global of the same name as a native (its own sum or abs), the
+    declaration replaces the native. Two natives of the same name are an error.
+*/
+final class NativeRegistry {
+    private static final List<Class<?>> MODULES = List.of(CoreModule.class, MathModule.class, TimeModule.class,
+            NumericModule.class);
+
+    private NativeRegistry() {}
+
+    static void defineAll(GlobalTable globals) {
+        List<Class<?>> modules = new ArrayList<>(MODULES);
+        String extra = System.getProperty("jlox.natives", "");
+        for(String className : extra.split(",")) {
+            if(className.isBlank()) continue;
+            try {
+                modules.add(Class.forName(className.trim()));
+            } catch (ClassNotFoundException err) {
+                throw new IllegalStateException("Native module " + className.trim() + " not found", err);
+            }
+        }
+        for(Class<?> module : modules) {
+            define(globals, module);
+        }
+    }
+
+    static void define(GlobalTable globals, Class<?> module) {
+        MethodHandles.Lookup lookup;
+        try {
+            lookup = MethodHandles.privateLookupIn(module, MethodHandles.lookup());
+        } catch (IllegalAccessException err) {
+            throw new IllegalStateException("Native module " + module.getName() + " is not accessible", err);
+        }
+        for(Method method : module.getDeclaredMethods()) {
+            LoxNative annotation = method.getAnnotation(LoxNative.class);
+            if(annotation == null) continue;
+            if(!Modifier.isStatic(method.getModifiers())) {
+                throw new IllegalStateException("Native " + annotation.value() + " must be a static method");
+            }
+            Token name = new Token(TokenType.IDENTIFIER, annotation.value(), null, -1);
+            globals.defineNative(name, NativeFunction.bind(annotation.value(), method, lookup));
+        }
+    }
+}
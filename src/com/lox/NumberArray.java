@@ -0,0 +1,22 @@
+package com.lox;
+
+// A fixed size array of numbers for the NumericModule, kept as primitive doubles.
+final class NumberArray {
+    final double[] values;
+
+    NumberArray(double[] values) {
+        this.values = values;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < values.length; ++i) {
+            if(i > 0) sb.append(", ");
+            String text = Double.toString(values[i]);
+            if(text.endsWith(".0")) text = text.substring(0, text.length() - 2);
+            sb.append(text);
+        }
+        return sb.append("]").toString();
+    }
+}
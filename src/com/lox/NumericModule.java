@@ -0,0 +1,204 @@
+package com.lox;
+
+import java.util.Arrays;
+
+/*
+    Bulk math over NumberArrays, so statistics over a data set run as Java loops over a double[]
+    instead of one interpreted while loop iteration per element.
+    The element wise loops are plain counted loops HotSpot vectorises. The sums keep four
+    partial sums, that breaks the dependency between iterations (the result can differ from a
+    strict left to right sum in the last bits).
+    Functions that produce an array return a new one and leave their arguments alone.
+*/
+final class NumericModule {
+    // the most elements of an array (512 MiB of doubles), with or without --max-memory-mb
+    static final int MAX_SIZE = 1 << 26;
+
+    private NumericModule() {}
+
+    // n zeros
+    @LoxNative("array")
+    static NumberArray array(Interpreter interpreter, int n) {
+        return new NumberArray(new double[checkedSize(interpreter, n)]);
+    }
+
+    // 0, 1, ..., n - 1
+    @LoxNative("range")
+    static NumberArray range(Interpreter interpreter, int n) {
+        double[] values = new double[checkedSize(interpreter, n)];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = i;
+        }
+        return new NumberArray(values);
+    }
+
+    @LoxNative("arrayLength")
+    static int arrayLength(Object array) {
+        return values(array, 1).length;
+    }
+
+    @LoxNative("arrayGet")
+    static double arrayGet(Object array, int index) {
+        double[] values = values(array, 1);
+        return values[checkedIndex(values, index)];
+    }
+
+    @LoxNative("arraySet")
+    static double arraySet(Object array, int index, double value) {
+        double[] values = values(array, 1);
+        values[checkedIndex(values, index)] = value;
+        return value;
+    }
+
+    @LoxNative("sum")
+    static double sum(Object array) {
+        return sum(values(array, 1));
+    }
+
+    @LoxNative("mean")
+    static double mean(Object array) {
+        double[] values = nonEmpty(array);
+        return sum(values) / values.length;
+    }
+
+    @LoxNative("dot")
+    static double dot(Object left, Object right) {
+        double[] a = values(left, 1);
+        double[] b = values(right, 2);
+        if(a.length != b.length) {
+            throw new IllegalArgumentException("Arrays of length " + a.length + " and " + b.length + " can't be multiplied");
+        }
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < a.length; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < a.length; ++i) {
+            s0 += a[i] * b[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @LoxNative("min")
+    static double min(Object array) {
+        double[] values = nonEmpty(array);
+        double min = values[0];
+        for (int i = 1; i < values.length; ++i) {
+            min = Math.min(min, values[i]);
+        }
+        return min;
+    }
+
+    @LoxNative("max")
+    static double max(Object array) {
+        double[] values = nonEmpty(array);
+        double max = values[0];
+        for (int i = 1; i < values.length; ++i) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    // every element times factor
+    @LoxNative("scale")
+    static NumberArray scale(Interpreter interpreter, Object array, double factor) {
+        double[] values = values(array, 1);
+        double[] result = new double[checkedSize(interpreter, values.length)];
+        for (int i = 0; i < values.length; ++i) {
+            result[i] = values[i] * factor;
+        }
+        return new NumberArray(result);
+    }
+
+    // every element plus amount
+    @LoxNative("offset")
+    static NumberArray offset(Interpreter interpreter, Object array, double amount) {
+        double[] values = values(array, 1);
+        double[] result = new double[checkedSize(interpreter, values.length)];
+        for (int i = 0; i < values.length; ++i) {
+            result[i] = values[i] + amount;
+        }
+        return new NumberArray(result);
+    }
+
+    @LoxNative("sort")
+    static NumberArray sort(Interpreter interpreter, Object array) {
+        double[] values = values(array, 1);
+        checkedSize(interpreter, values.length);
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return new NumberArray(sorted);
+    }
+
+    // counts of the elements in bins of equal width from the min to the max, NaN is not counted
+    @LoxNative("histogram")
+    static NumberArray histogram(Interpreter interpreter, Object array, int bins) {
+        if(bins < 1) throw new IllegalArgumentException("Number of bins must be at least 1");
+        double[] values = nonEmpty(array);
+        double[] counts = new double[checkedSize(interpreter, bins)];
+        // the range of the numbers, Math.min and Math.max would make it NaN
+        double low = Double.POSITIVE_INFINITY;
+        double high = Double.NEGATIVE_INFINITY;
+        for(double value : values) {
+            if(value < low) low = value;
+            if(value > high) high = value;
+        }
+        double width = (high - low) / bins;
+        for(double value : values) {
+            if(Double.isNaN(value)) continue;
+            int bin = width == 0 ? 0 : (int) ((value - low) / width);
+            counts[Math.min(bin, bins - 1)]++;
+        }
+        return new NumberArray(counts);
+    }
+
+    private static double sum(double[] values) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < values.length; i += 4) {
+            s0 += values[i];
+            s1 += values[i + 1];
+            s2 += values[i + 2];
+            s3 += values[i + 3];
+        }
+        for (; i < values.length; ++i) {
+            s0 += values[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private static double[] values(Object array, int argument) {
+        if(array instanceof NumberArray numbers) return numbers.values;
+        throw new IllegalArgumentException("Argument " + argument + " must be an array");
+    }
+
+    private static double[] nonEmpty(Object array) {
+        double[] values = values(array, 1);
+        if(values.length == 0) throw new IllegalArgumentException("Array must not be empty");
+        return values;
+    }
+
+    private static int checkedIndex(double[] values, int index) {
+        if(index < 0 || index >= values.length) {
+            throw new IllegalArgumentException("Index " + index + " out of bounds for array of length " + values.length);
+        }
+        return index;
+    }
+
+    // a new array of n elements has to fit into the memory budget and the heap
+    private static int checkedSize(Interpreter interpreter, int n) {
+        if(n < 0) throw new IllegalArgumentException("Array size must not be negative");
+        if(n > MAX_SIZE) throw new IllegalArgumentException("Array size " + n + " is above the maximum of " + MAX_SIZE);
+        long bytes = MemoryBudget.arrayBytes(n);
+        if(!interpreter.memory.fits(bytes)) {
+            throw new IllegalArgumentException("Memory limit of " + interpreter.memory.maxBytes + " bytes exceeded");
+        }
+        if(bytes > Runtime.getRuntime().maxMemory()) {
+            throw new IllegalArgumentException("Array of " + n + " elements is larger than the heap");
+        }
+        return n;
+    }
+}
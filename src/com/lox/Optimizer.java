@@ -0,0 +1,685 @@
+package com.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/*
+    Loop optimisations over the AST, run between the Parser and the Resolver.
+    Pure expressions are made of literals, variables, groupings and the unary, binary and
+    logical operators. A call can run any code, so it is impure and it may also change the
+    globals and the variables its closures assign.
+    - Loop invariant code motion: a pure expression inside a while/for loop whose variables
+      the loop never writes is computed once per run of the loop, identical ones share it.
+    - Common subexpressions: a pure expression used several times in a basic block (a run of
+      statements without control flow) of a loop body is computed once per iteration.
+    Both become an Expr.Memo with a slot in a memo frame of their loop. The Interpreter opens
+    the frame when the loop starts and clears the per iteration slots on every iteration. The
+    first evaluation still happens where the expression was, so an expression that fails (a
+    type error, an undefined global) fails at the same point as before and a loop that doesn't
+    run never evaluates it.
+    Only expressions with a binary operator are worth a slot. Nothing moves across functions.
+*/
+class Optimizer {
+    // a function body, or the top level, being optimised
+    private static final class Function {
+        // the local scopes declared so far, the innermost last
+        final List<Set<String>> scopes = new ArrayList<>();
+        // names assigned by the functions nested in it, a call can change them
+        final Set<String> closureAssigned = new HashSet<>();
+        final List<Loop> loops = new ArrayList<>();
+    }
+
+    // a loop being optimised
+    private static final class Loop {
+        final Token keyword;
+        // names the loop assigns or declares, anywhere in it
+        final Set<String> writes = new HashSet<>();
+        boolean calls = false;
+        // the hoisted expressions with their memos, identical ones share a slot
+        final Map<Expr, List<Expr.Memo>> invariants = new LinkedHashMap<>();
+        final List<Expr.Memo> perIteration = new ArrayList<>();
+
+        Loop(Token keyword) {
+            this.keyword = keyword;
+        }
+    }
+
+    // rounds of common subexpression elimination per basic block, bounds the work on huge blocks
+    private static final int MAX_CSE_ROUNDS = 64;
+
+    private final List<Function> functions = new ArrayList<>();
+    private final List<String> rewrites = new ArrayList<>();
+    private final AstPrinter printer = new AstPrinter();
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        Function top = new Function();
+        for(Stmt statement : statements) {
+            collectClosureWrites(statement, top.closureAssigned, false);
+        }
+        functions.add(top);
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for(Stmt statement : statements) {
+            optimized.add(statement(statement));
+        }
+        functions.removeLast();
+        return optimized;
+    }
+
+    // where each rewrite happened, for --dump-opt
+    void dump(PrintStream out) {
+        for(String rewrite : rewrites) {
+            out.println(rewrite);
+        }
+    }
+
+    private Function function() {
+        return functions.getLast();
+    }
+
+    private void declare(Token name) {
+        List<Set<String>> scopes = function().scopes;
+        if(!scopes.isEmpty()) scopes.getLast().add(name.lexeme);
+    }
+
+    private Stmt[] block(Stmt[] statements) {
+        function().scopes.add(new HashSet<>());
+        Stmt[] optimized = statements(statements);
+        function().scopes.removeLast();
+        return optimized;
+    }
+
+    private Stmt[] statements(Stmt[] statements) {
+        Stmt[] optimized = new Stmt[statements.length];
+        for (int i = 0; i < statements.length; ++i) {
+            optimized[i] = statement(statements[i]);
+        }
+        List<Loop> loops = function().loops;
+        if(!loops.isEmpty()) eliminateCommon(optimized, loops.getLast());
+        return optimized;
+    }
+
+    private Stmt statement(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.IF: {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                Expr condition = expression(ifStmt.condition);
+                Stmt[] thenBranches = block(ifStmt.thenBranches);
+                Stmt[] elseBranches = ifStmt.elseBranches == null ? null : block(ifStmt.elseBranches);
+                return at(new Stmt.If(condition, thenBranches, elseBranches), stmt);
+            }
+            case Stmt.WHILE:
+            case Stmt.FOR:
+                return loop(stmt);
+            case Stmt.BLOCK:
+                return at(new Stmt.Block(block(((Stmt.Block) stmt).statements)), stmt);
+            case Stmt.CLASS: {
+                Stmt.Class classStmt = (Stmt.Class) stmt;
+                declare(classStmt.name);
+                Stmt.Function[] methods = new Stmt.Function[classStmt.methods.length];
+                for (int i = 0; i < methods.length; ++i) {
+                    methods[i] = function(classStmt.methods[i]);
+                }
+                return at(new Stmt.Class(classStmt.name, classStmt.superclass, methods), stmt);
+            }
+            case Stmt.EXPRESSION:
+            case Stmt.PRINT: {
+                Expr expr = expressionOf(stmt);
+                Expr optimized = expression(expr);
+                return optimized == expr ? stmt : withExpression(stmt, optimized);
+            }
+            case Stmt.FUNCTION: {
+                declare(((Stmt.Function) stmt).name);
+                return function((Stmt.Function) stmt);
+            }
+            case Stmt.RETURN: {
+                Stmt.Return returnStmt = (Stmt.Return) stmt;
+                Expr value = returnStmt.value == null ? null : expression(returnStmt.value);
+                if(value == returnStmt.value) return stmt;
+                return at(new Stmt.Return(returnStmt.keyword, value), stmt);
+            }
+            case Stmt.VAR: {
+                Stmt.Var var = (Stmt.Var) stmt;
+                Expr initializer = var.initializer == null ? null : expression(var.initializer);
+                declare(var.name);
+                return initializer == var.initializer ? stmt : withExpression(stmt, initializer);
+            }
+            case Stmt.REASSIGN: {
+                Stmt.Reassign reassign = (Stmt.Reassign) stmt;
+                Expr value = reassign.reInitializer == null ? null : expression(reassign.reInitializer);
+                return value == reassign.reInitializer ? stmt : withExpression(stmt, value);
+            }
+            default:
+                return stmt;
+        }
+    }
+
+    private Stmt.Function function(Stmt.Function declaration) {
+        Function function = new Function();
+        for(Stmt statement : declaration.body) {
+            collectClosureWrites(statement, function.closureAssigned, false);
+        }
+        Set<String> params = new HashSet<>();
+        for(Token param : declaration.params) {
+            params.add(param.lexeme);
+        }
+        function.scopes.add(params);
+        functions.add(function);
+        Stmt[] body = statements(declaration.body);
+        functions.removeLast();
+        // in place, the Inliner's call sites know the function by its declaration
+        System.arraycopy(body, 0, declaration.body, 0, body.length);
+        return declaration;
+    }
+
+    private Stmt loop(Stmt stmt) {
+        Stmt.For forStmt = stmt.kind == Stmt.FOR ? (Stmt.For) stmt : null;
+        Stmt.While whileStmt = stmt.kind == Stmt.WHILE ? (Stmt.While) stmt : null;
+        Function function = function();
+        boolean scoped = forStmt != null && forStmt.initializer != null;
+        if(scoped) function.scopes.add(new HashSet<>());
+        Stmt initializer = scoped ? statement(forStmt.initializer) : null;
+
+        Loop loop = new Loop(forStmt != null ? forStmt.keyword : whileStmt.keyword);
+        Expr condition = forStmt != null ? forStmt.condition : whileStmt.condition;
+        Expr increment = forStmt != null ? forStmt.increment : null;
+        Stmt[] body = forStmt != null ? forStmt.body : whileStmt.body;
+        collectWrites(condition, loop);
+        collectWrites(increment, loop);
+        for(Stmt statement : body) {
+            collectWrites(statement, loop);
+        }
+
+        function.loops.add(loop);
+        condition = condition == null ? null : expression(condition);
+        increment = increment == null ? null : expression(increment);
+        body = block(body);
+        function.loops.removeLast();
+        if(scoped) function.scopes.removeLast();
+
+        Stmt optimized;
+        if(forStmt != null) {
+            Stmt.For newFor = new Stmt.For(forStmt.keyword, initializer, condition, increment, body);
+            newFor.memoSlots = assignSlots(loop, newFor);
+            newFor.iterationMemo = loop.invariants.size();
+            optimized = newFor;
+        } else {
+            Stmt.While newWhile = new Stmt.While(whileStmt.keyword, condition, body);
+            newWhile.memoSlots = assignSlots(loop, newWhile);
+            newWhile.iterationMemo = loop.invariants.size();
+            optimized = newWhile;
+        }
+        return at(optimized, stmt);
+    }
+
+    // the invariants first, then the per iteration slots
+    private static int assignSlots(Loop loop, Stmt node) {
+        int slot = 0;
+        for(List<Expr.Memo> memos : loop.invariants.values()) {
+            for(Expr.Memo memo : memos) {
+                memo.loop = node;
+                memo.slot = slot;
+            }
+            slot++;
+        }
+        for(Expr.Memo memo : loop.perIteration) {
+            memo.loop = node;
+            memo.slot = slot++;
+        }
+        return slot;
+    }
+
+    // Loop invariant code motion: the expression with its invariant parts memoized for the
+    // outermost loop they are invariant in.
+    private Expr expression(Expr expr) {
+        List<Loop> loops = function().loops;
+        if(loops.isEmpty()) return expr;
+        if(isCandidate(expr)) {
+            Set<String> reads = new HashSet<>();
+            collectReads(expr, reads);
+            for(Loop loop : loops) {
+                if(!isInvariant(reads, loop)) continue;
+                // each use keeps its own copy, it is resolved where it is
+                Expr.Memo memo = at(new Expr.Memo(expr), expr);
+                List<Expr.Memo> same = loop.invariants.computeIfAbsent(ungrouped(expr), key -> new ArrayList<>());
+                String shared = same.isEmpty() ? "" : " (same slot as line " + same.getFirst().line + ")";
+                same.add(memo);
+                rewrites.add("[line " + expr.line + "] hoisted out of the loop at line " + loop.keyword.line
+                        + shared + ": " + printer.print(expr));
+                return memo;
+            }
+        }
+        return rewriteChildren(expr, this::expression);
+    }
+
+    // (n * n) is the same expression as n * n
+    private static Expr ungrouped(Expr expr) {
+        while (expr.kind == Expr.GROUPING) expr = ((Expr.Grouping) expr).expression;
+        return expr;
+    }
+
+    private boolean isInvariant(Set<String> reads, Loop loop) {
+        for(String name : reads) {
+            if(loop.writes.contains(name)) return false;
+            if(loop.calls && !isCallSafe(name)) return false;
+        }
+        return true;
+    }
+
+    // a local of the function that no closure assigns, no call can change it
+    private boolean isCallSafe(String name) {
+        Function function = function();
+        if(function.closureAssigned.contains(name)) return false;
+        for(Set<String> scope : function.scopes) {
+            if(scope.contains(name)) return true;
+        }
+        return false;
+    }
+
+    // Common subexpressions in the basic blocks of the statements, repeated pure expressions
+    // get a per iteration slot of the loop, the largest ones first.
+    private void eliminateCommon(Stmt[] statements, Loop loop) {
+        int start = 0;
+        while (start < statements.length) {
+            int end = start;
+            while (end < statements.length && isSimple(statements[end])) end++;
+            if(end - start > 0) {
+                for (int round = 0; round < MAX_CSE_ROUNDS; ++round) {
+                    if(!eliminateOne(statements, start, end, loop)) break;
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    private static boolean isSimple(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.EXPRESSION:
+            case Stmt.PRINT:
+            case Stmt.VAR:
+            case Stmt.REASSIGN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean eliminateOne(Stmt[] statements, int start, int end, Loop loop) {
+        // every candidate with the statements it is used in
+        Map<Expr, List<Integer>> uses = new HashMap<>();
+        for (int i = start; i < end; ++i) {
+            Expr expr = expressionOf(statements[i]);
+            if(expr != null) collectCandidates(expr, i, uses);
+        }
+        Expr best = null;
+        int bestSize = 0;
+        for(Map.Entry<Expr, List<Integer>> entry : uses.entrySet()) {
+            List<Integer> at = entry.getValue();
+            if(at.size() < 2) continue;
+            int size = size(entry.getKey());
+            if(size <= bestSize || !isStable(entry.getKey(), statements, at.getFirst(), at.getLast(), loop)) continue;
+            best = entry.getKey();
+            bestSize = size;
+        }
+        if(best == null) return false;
+
+        Expr.Memo memo = at(new Expr.Memo(best), best);
+        loop.perIteration.add(memo);
+        for (int i = uses.get(best).getFirst(); i <= uses.get(best).getLast(); ++i) {
+            Expr expr = expressionOf(statements[i]);
+            if(expr != null) statements[i] = withExpression(statements[i], replace(expr, best, memo));
+        }
+        rewrites.add("[line " + best.line + "] computed once per iteration of the loop at line " + loop.keyword.line
+                + " (" + uses.get(best).size() + " uses): " + printer.print(best));
+        return true;
+    }
+
+    // nothing between the first and the last use changes the variables of the expression
+    private boolean isStable(Expr expr, Stmt[] statements, int first, int last, Loop loop) {
+        Set<String> reads = new HashSet<>();
+        collectReads(expr, reads);
+        Loop stretch = new Loop(loop.keyword);
+        for (int i = first; i <= last; ++i) {
+            collectWrites(statements[i], stretch);
+        }
+        return isInvariant(reads, stretch);
+    }
+
+    private void collectCandidates(Expr expr, int statement, Map<Expr, List<Integer>> uses) {
+        if(expr.kind == Expr.MEMO) return;
+        if(isCandidate(expr)) {
+            uses.computeIfAbsent(expr, key -> new ArrayList<>()).add(statement);
+        }
+        forEachChild(expr, child -> collectCandidates(child, statement, uses));
+    }
+
+    static Expr expressionOf(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.EXPRESSION: return ((Stmt.Expression) stmt).expression;
+            case Stmt.PRINT: return ((Stmt.Print) stmt).expression;
+            case Stmt.VAR: return ((Stmt.Var) stmt).initializer;
+            case Stmt.REASSIGN: return ((Stmt.Reassign) stmt).reInitializer;
+            default: return null;
+        }
+    }
+
+    static Stmt withExpression(Stmt stmt, Expr expr) {
+        switch (stmt.kind) {
+            case Stmt.EXPRESSION: return at(new Stmt.Expression(expr), stmt);
+            case Stmt.PRINT: return at(new Stmt.Print(expr), stmt);
+            case Stmt.VAR: return at(new Stmt.Var(((Stmt.Var) stmt).name, expr), stmt);
+            default: return at(new Stmt.Reassign(((Stmt.Reassign) stmt).name, expr), stmt);
+        }
+    }
+
+    private static Expr replace(Expr expr, Expr target, Expr.Memo memo) {
+        if(expr.kind == Expr.MEMO) return expr;
+        if(expr.equals(target)) return memo;
+        return rewriteChildren(expr, child -> replace(child, target, memo));
+    }
+
+    // pure, and with a binary operator somewhere to be worth a slot
+    private static boolean isCandidate(Expr expr) {
+        return expr.kind != Expr.MEMO && isPure(expr) && hasBinary(expr);
+    }
+
+    private static boolean isPure(Expr expr) {
+        switch (expr.kind) {
+            case Expr.LITERAL:
+            case Expr.VARIABLE:
+            case Expr.MEMO:
+                return true;
+            case Expr.GROUPING:
+                return isPure(((Expr.Grouping) expr).expression);
+            case Expr.UNARY:
+                return isPure(((Expr.Unary) expr).right);
+            case Expr.BINARY:
+                return isPure(((Expr.Binary) expr).left) && isPure(((Expr.Binary) expr).right);
+            case Expr.LOGICAL:
+                return isPure(((Expr.Logical) expr).left) && isPure(((Expr.Logical) expr).right);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean hasBinary(Expr expr) {
+        if(expr.kind == Expr.BINARY) return true;
+        boolean[] found = {false};
+        forEachChild(expr, child -> found[0] |= child.kind != Expr.MEMO && hasBinary(child));
+        return found[0];
+    }
+
+    // the number of nodes, counted with an explicit stack: the Inliner sizes every function
+    static int size(Expr expr) {
+        int size = 0;
+        Deque<Expr> pending = new ArrayDeque<>();
+        pending.push(expr);
+        while(!pending.isEmpty()) {
+            size++;
+            forEachChild(pending.pop(), pending::push);
+        }
+        return size;
+    }
+
+    private static void collectReads(Expr expr, Set<String> reads) {
+        if(expr.kind == Expr.VARIABLE) reads.add(((Expr.Variable) expr).name.lexeme);
+        if(expr.kind == Expr.MEMO) {
+            collectReads(((Expr.Memo) expr).expression, reads);
+            return;
+        }
+        forEachChild(expr, child -> collectReads(child, reads));
+    }
+
+    // the names a loop assigns or declares and whether it calls anything, nested functions
+    // included: they may be called in the loop
+    private static void collectWrites(Stmt stmt, Loop loop) {
+        switch (stmt.kind) {
+            case Stmt.IF: {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                collectWrites(ifStmt.condition, loop);
+                for(Stmt branch : ifStmt.thenBranches) collectWrites(branch, loop);
+                if(ifStmt.elseBranches != null) {
+                    for(Stmt branch : ifStmt.elseBranches) collectWrites(branch, loop);
+                }
+                break;
+            }
+            case Stmt.WHILE: {
+                Stmt.While whileStmt = (Stmt.While) stmt;
+                collectWrites(whileStmt.condition, loop);
+                for(Stmt statement : whileStmt.body) collectWrites(statement, loop);
+                break;
+            }
+            case Stmt.FOR: {
+                Stmt.For forStmt = (Stmt.For) stmt;
+                if(forStmt.initializer != null) collectWrites(forStmt.initializer, loop);
+                collectWrites(forStmt.condition, loop);
+                collectWrites(forStmt.increment, loop);
+                for(Stmt statement : forStmt.body) collectWrites(statement, loop);
+                break;
+            }
+            case Stmt.BLOCK:
+                for(Stmt statement : ((Stmt.Block) stmt).statements) collectWrites(statement, loop);
+                break;
+            case Stmt.CLASS:
+                loop.writes.add(((Stmt.Class) stmt).name.lexeme);
+                collectClosureWrites(stmt, loop.writes, true);
+                break;
+            case Stmt.EXPRESSION:
+                collectWrites(((Stmt.Expression) stmt).expression, loop);
+                break;
+            case Stmt.FUNCTION:
+                loop.writes.add(((Stmt.Function) stmt).name.lexeme);
+                collectClosureWrites(stmt, loop.writes, true);
+                break;
+            case Stmt.PRINT:
+                collectWrites(((Stmt.Print) stmt).expression, loop);
+                break;
+            case Stmt.RETURN:
+                collectWrites(((Stmt.Return) stmt).value, loop);
+                break;
+            case Stmt.VAR:
+                loop.writes.add(((Stmt.Var) stmt).name.lexeme);
+                collectWrites(((Stmt.Var) stmt).initializer, loop);
+                break;
+            case Stmt.REASSIGN:
+                loop.writes.add(((Stmt.Reassign) stmt).name.lexeme);
+                collectWrites(((Stmt.Reassign) stmt).reInitializer, loop);
+                break;
+        }
+    }
+
+    private static void collectWrites(Expr expr, Loop loop) {
+        if(expr == null) return;
+        if(expr.kind == Expr.ASSIGN) loop.writes.add(((Expr.Assign) expr).name.lexeme);
+        if(expr.kind == Expr.CALL || expr.kind == Expr.INLINE) loop.calls = true;
+        forEachChild(expr, child -> collectWrites(child, loop));
+    }
+
+    // The names the functions in stmt assign (or declare, with declared set), by name only: a
+    // local of a closure that shadows an outer variable counts as well.
+    private static void collectClosureWrites(Stmt stmt, Set<String> names, boolean inFunction) {
+        switch (stmt.kind) {
+            case Stmt.IF: {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                collectClosureWrites(ifStmt.condition, names, inFunction);
+                for(Stmt branch : ifStmt.thenBranches) collectClosureWrites(branch, names, inFunction);
+                if(ifStmt.elseBranches != null) {
+                    for(Stmt branch : ifStmt.elseBranches) collectClosureWrites(branch, names, inFunction);
+                }
+                break;
+            }
+            case Stmt.WHILE: {
+                Stmt.While whileStmt = (Stmt.While) stmt;
+                collectClosureWrites(whileStmt.condition, names, inFunction);
+                for(Stmt statement : whileStmt.body) collectClosureWrites(statement, names, inFunction);
+                break;
+            }
+            case Stmt.FOR: {
+                Stmt.For forStmt = (Stmt.For) stmt;
+                if(forStmt.initializer != null) collectClosureWrites(forStmt.initializer, names, inFunction);
+                collectClosureWrites(forStmt.condition, names, inFunction);
+                collectClosureWrites(forStmt.increment, names, inFunction);
+                for(Stmt statement : forStmt.body) collectClosureWrites(statement, names, inFunction);
+                break;
+            }
+            case Stmt.BLOCK:
+                for(Stmt statement : ((Stmt.Block) stmt).statements) collectClosureWrites(statement, names, inFunction);
+                break;
+            case Stmt.CLASS:
+                for(Stmt.Function method : ((Stmt.Class) stmt).methods) collectClosureWrites(method, names, true);
+                break;
+            case Stmt.FUNCTION:
+                for(Stmt statement : ((Stmt.Function) stmt).body) collectClosureWrites(statement, names, true);
+                break;
+            case Stmt.EXPRESSION:
+                collectClosureWrites(((Stmt.Expression) stmt).expression, names, inFunction);
+                break;
+            case Stmt.PRINT:
+                collectClosureWrites(((Stmt.Print) stmt).expression, names, inFunction);
+                break;
+            case Stmt.RETURN:
+                collectClosureWrites(((Stmt.Return) stmt).value, names, inFunction);
+                break;
+            case Stmt.VAR:
+                collectClosureWrites(((Stmt.Var) stmt).initializer, names, inFunction);
+                break;
+            case Stmt.REASSIGN:
+                if(inFunction) names.add(((Stmt.Reassign) stmt).name.lexeme);
+                collectClosureWrites(((Stmt.Reassign) stmt).reInitializer, names, inFunction);
+                break;
+        }
+    }
+
+    private static void collectClosureWrites(Expr expr, Set<String> names, boolean inFunction) {
+        if(expr == null || !inFunction) return;
+        if(expr.kind == Expr.ASSIGN) names.add(((Expr.Assign) expr).name.lexeme);
+        forEachChild(expr, child -> collectClosureWrites(child, names, true));
+    }
+
+    // the body of an Expr.Inline is not a child, it runs in the scope of its function
+    static void forEachChild(Expr expr, Consumer<Expr> action) {
+        switch (expr.kind) {
+            case Expr.ASSIGN: action.accept(((Expr.Assign) expr).value); break;
+            case Expr.BINARY:
+                action.accept(((Expr.Binary) expr).left);
+                action.accept(((Expr.Binary) expr).right);
+                break;
+            case Expr.CALL:
+                action.accept(((Expr.Call) expr).callee);
+                for(Expr argument : ((Expr.Call) expr).arguments) action.accept(argument);
+                break;
+            case Expr.GET: action.accept(((Expr.Get) expr).object); break;
+            case Expr.GROUPING: action.accept(((Expr.Grouping) expr).expression); break;
+            case Expr.LOGICAL:
+                action.accept(((Expr.Logical) expr).left);
+                action.accept(((Expr.Logical) expr).right);
+                break;
+            case Expr.SET:
+                action.accept(((Expr.Set) expr).object);
+                action.accept(((Expr.Set) expr).value);
+                break;
+            case Expr.UNARY: action.accept(((Expr.Unary) expr).right); break;
+            case Expr.MEMO: action.accept(((Expr.Memo) expr).expression); break;
+            case Expr.INLINE:
+                action.accept(((Expr.Inline) expr).callee);
+                for(Expr argument : ((Expr.Inline) expr).arguments) action.accept(argument);
+                break;
+        }
+    }
+
+    // the node with its children rewritten, the node itself when none changed
+    static Expr rewriteChildren(Expr expr, UnaryOperator<Expr> rewrite) {
+        switch (expr.kind) {
+            case Expr.ASSIGN: {
+                Expr.Assign assign = (Expr.Assign) expr;
+                Expr value = rewrite.apply(assign.value);
+                return value == assign.value ? expr : at(new Expr.Assign(assign.name, value), expr);
+            }
+            case Expr.BINARY: {
+                Expr.Binary binary = (Expr.Binary) expr;
+                Expr left = rewrite.apply(binary.left);
+                Expr right = rewrite.apply(binary.right);
+                if(left == binary.left && right == binary.right) return expr;
+                return at(new Expr.Binary(left, binary.operator, right), expr);
+            }
+            case Expr.CALL: {
+                Expr.Call call = (Expr.Call) expr;
+                Expr callee = rewrite.apply(call.callee);
+                boolean changed = callee != call.callee;
+                Expr[] arguments = new Expr[call.arguments.length];
+                for (int i = 0; i < arguments.length; ++i) {
+                    arguments[i] = rewrite.apply(call.arguments[i]);
+                    changed |= arguments[i] != call.arguments[i];
+                }
+                return changed ? at(new Expr.Call(callee, call.paren, arguments), expr) : expr;
+            }
+            case Expr.GET: {
+                Expr.Get get = (Expr.Get) expr;
+                Expr object = rewrite.apply(get.object);
+                return object == get.object ? expr : at(new Expr.Get(object, get.name), expr);
+            }
+            case Expr.GROUPING: {
+                Expr.Grouping grouping = (Expr.Grouping) expr;
+                Expr inner = rewrite.apply(grouping.expression);
+                return inner == grouping.expression ? expr : at(new Expr.Grouping(inner), expr);
+            }
+            case Expr.LOGICAL: {
+                Expr.Logical logical = (Expr.Logical) expr;
+                Expr left = rewrite.apply(logical.left);
+                Expr right = rewrite.apply(logical.right);
+                if(left == logical.left && right == logical.right) return expr;
+                return at(new Expr.Logical(left, logical.operator, right), expr);
+            }
+            case Expr.SET: {
+                Expr.Set set = (Expr.Set) expr;
+                Expr object = rewrite.apply(set.object);
+                Expr value = rewrite.apply(set.value);
+                if(object == set.object && value == set.value) return expr;
+                return at(new Expr.Set(object, set.name, value), expr);
+            }
+            case Expr.UNARY: {
+                Expr.Unary unary = (Expr.Unary) expr;
+                Expr right = rewrite.apply(unary.right);
+                return right == unary.right ? expr : at(new Expr.Unary(unary.operator, right), expr);
+            }
+            case Expr.INLINE: {
+                Expr.Inline inline = (Expr.Inline) expr;
+                Expr callee = rewrite.apply(inline.callee);
+                boolean changed = callee != inline.callee;
+                Expr[] arguments = new Expr[inline.arguments.length];
+                for (int i = 0; i < arguments.length; ++i) {
+                    arguments[i] = rewrite.apply(inline.arguments[i]);
+                    changed |= arguments[i] != inline.arguments[i];
+                }
+                if(!changed) return expr;
+                Expr.Inline rewritten = at(new Expr.Inline(callee, inline.paren, arguments, inline.body), expr);
+                rewritten.function = inline.function;
+                return rewritten;
+            }
+            default:
+                return expr;
+        }
+    }
+
+    // the new node takes over the span of the one it replaces
+    static <T extends Expr> T at(T node, Expr from) {
+        node.line = from.line;
+        node.endLine = from.endLine;
+        return node;
+    }
+
+    static <T extends Stmt> T at(T node, Stmt from) {
+        node.line = from.line;
+        node.endLine = from.endLine;
+        return node;
+    }
+}
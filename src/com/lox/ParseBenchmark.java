@@ -0,0 +1,135 @@
+package com.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+
+/*
+    Parse throughput of the Parser on a large, expression heavy source.
+      java com.lox.ParseBenchmark [megabytes | file.jlox] [runs]
+    Without a file a source of the given size (10 MB by default) is generated: statements made
+    of random nested expressions with every operator, calls, property accesses and groupings.
+    The source is scanned once, the tokens are parsed once to warm up and then runs times,
+    the best and the mean throughput are printed. bin/parse-bench runs it against the
+    Parser of another revision.
+*/
+class ParseBenchmark {
+    private static final String[] BINARY = {"+", "-", "*", "/", "<", "<=", ">", ">=", "==", "!="};
+    private static final String[] NAMES = {"a", "b", "count", "total", "x1", "y2", "value"};
+
+    public static void main(String[] args) throws IOException {
+        String what = args.length > 0 ? args[0] : "10";
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String source;
+        if(what.endsWith(".jlox") || what.endsWith(".lox")) {
+            source = new String(Files.readAllBytes(Paths.get(what)), StandardCharsets.UTF_8);
+        } else {
+            source = generate((long) (Double.parseDouble(what) * 1024 * 1024), new Random(42));
+        }
+        double megabytes = source.length() / (1024.0 * 1024.0);
+
+        ErrorReporter reporter = new ErrorReporter(new PrintStream(OutputStream.nullOutputStream()));
+        List<Token> tokens = new Scanner(source, reporter).scanTokens();
+        int statements = new Parser(tokens, reporter).parse().size();
+        if(reporter.hadError) {
+            System.err.println("The source has syntax errors, run it with jlox to see them.");
+            System.exit(65);
+        }
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < runs; ++i) {
+            long start = System.nanoTime();
+            new Parser(tokens, reporter).parse();
+            long elapsed = System.nanoTime() - start;
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+        System.out.printf("parse %.1f MB, %d tokens, %d statements, %d runs%n",
+                megabytes, tokens.size(), statements, runs);
+        System.out.printf("best %.1f ms (%.1f MB/s), mean %.1f ms (%.1f MB/s)%n",
+                best / 1e6, megabytes / (best / 1e9), total / runs / 1e6, megabytes / (total / (double) runs / 1e9));
+    }
+
+    private static String generate(long bytes, Random random) {
+        StringBuilder source = new StringBuilder((int) bytes + 256);
+        int line = 0;
+        while (source.length() < bytes) {
+            switch (line++ % 4) {
+                case 0:
+                    source.append("var v").append(line).append(" = ");
+                    break;
+                case 1:
+                    source.append("print ");
+                    break;
+                case 2:
+                    source.append(name(random)).append(" = ");
+                    break;
+                default:
+                    source.append(name(random)).append('.').append(name(random)).append(" = ");
+                    break;
+            }
+            expression(source, random, 6);
+            source.append(";\n");
+        }
+        return source.toString();
+    }
+
+    private static void expression(StringBuilder source, Random random, int depth) {
+        int kind = depth == 0 ? 7 + random.nextInt(3) : random.nextInt(10);
+        switch (kind) {
+            case 0:
+            case 1:
+            case 2:
+                expression(source, random, depth - 1);
+                source.append(' ').append(BINARY[random.nextInt(BINARY.length)]).append(' ');
+                expression(source, random, depth - 1);
+                break;
+            case 3:
+                // the logical operators grouped, a chain of them is a single operator per group
+                source.append('(');
+                expression(source, random, depth - 1);
+                source.append(random.nextBoolean() ? " and " : " or ");
+                expression(source, random, depth - 1);
+                source.append(')');
+                break;
+            case 4:
+                source.append(random.nextBoolean() ? '-' : '!');
+                expression(source, random, depth - 1);
+                break;
+            case 5:
+                source.append('(');
+                expression(source, random, depth - 1);
+                source.append(')');
+                break;
+            case 6:
+                source.append(name(random)).append('(');
+                int arguments = random.nextInt(4);
+                for (int i = 0; i < arguments; ++i) {
+                    if(i > 0) source.append(", ");
+                    expression(source, random, depth - 1);
+                }
+                source.append(')');
+                break;
+            case 7:
+                source.append(random.nextInt(1000));
+                if(random.nextBoolean()) source.append('.').append(random.nextInt(100));
+                break;
+            case 8:
+                source.append(name(random));
+                break;
+            default:
+                source.append(name(random)).append('.').append(name(random));
+                break;
+        }
+    }
+
+    private static String name(Random random) {
+        return NAMES[random.nextInt(NAMES.length)];
+    }
+}
@@ -2,7 +2,9 @@ package com.lox;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 
 /*
@@ -14,25 +16,30 @@ import java.util.List;
     Parser expression grammar for jlox
     //statement syntax tree
      program     → declaration* EOF ;
-     declaration → funDecl | varDecl | varReassign | statement;
+     declaration → classDecl | funDecl | varDecl | varReassign | statement;
+     classDecl   → "class" IDENTIFIER ( "<" IDENTIFIER )? "{" function* "}" ;
      funDecl     → "fun" function ;
      function    → IDENTIFIER "(" parameters ? ")" block ;
      parameters  → IDENTIFIER ( "," IDENTIFIER )*
      varDecl     → "var" IDENTIFIER ( "=" expression) ? ";" ;
      varReassign → IDENTIFIER ( "=" expression);
-     statement   → exprStmt | ifStmt | whileStmt | forStmt |  printStmt | blockStmt | returnStmt ;
+     statement   → exprStmt | ifStmt | whileStmt | forStmt |  printStmt | blockStmt | returnStmt
+                    | breakStmt | continueStmt ;
      ifStmt      → "if" "(" expression ")" statements
                     ( "else" statements)? ;
      whileStmt   → "while" "(" expression ")" statement;
-     forStmt     → "for" "(" (varDecl | exprStmt | ;) expression? ";" expression?")" statements;
+     forStmt     → "for" "(" (varDecl | exprStmt | ;) expression? ";" ( expression ";"? )? ")" statements;
+     breakStmt   → "break" ";" ;     (only inside a loop)
+     continueStmt → "continue" ";" ;  (only inside a loop)
      blockStmt   → "{" declaration* "}";
      exprStmt    → expression ";" ;
      printStmt   → "print" expression ";" ;
      returnStmt  → "return" expression ? ";" ;
 
-    //expression syntax tree
+    //expression syntax tree, as precedence levels from low to high (the parser climbs them
+    //with the INFIX table instead of one method per level)
      expression →  assignment ;
-     assignment → IDENTIFIER "=" assignment | logic_or ;
+     assignment → ( call "." )? IDENTIFIER "=" assignment | logic_or ;
      logic_or   → logic_and ( "or" logic_and)* ;
      logic_and  → equality ( "and" equality )* ;
      equality   → comparison ( ( "!=" | "==" ) comparison )* ;
@@ -40,32 +47,93 @@ import java.util.List;
      term       → factor ( ( "-" | "+" ) factor )* ;
      factor     → unary ( ( "/" | "*" ) unary )* ;
      unary      → ( "!" | "-" ) unary | call ;
-     call       → primary ("(" arguments ?")")* ;
+     call       → primary ( "(" arguments ? ")" | "." IDENTIFIER )* ;
      arguments  → expression ( "," expression )* ;
-     primary    → NUMBER | STRING | "true" | "false" | "nil"
-                   |"(" expression ")" | IDENTIFIER ;
+     primary    → NUMBER | STRING | "true" | "false" | "nil" | "this"
+                   |"(" expression ")" | IDENTIFIER | "super" "." IDENTIFIER ;
 */
 
 public class Parser {
-    private static class ParseError extends RuntimeException { }
+    // stackless, recovering from an error only needs the unwinding to synchronize()
+    private static class ParseError extends RuntimeException {
+        ParseError() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Binding power of the infix operators, higher binds tighter. '(' and '.' are the postfix
+    // call and property access.
+    private static final int ASSIGNMENT = 1;
+    private static final int OR = 2;
+    private static final int AND = 3;
+    private static final int EQUALITY = 4;
+    private static final int COMPARISON = 5;
+    private static final int TERM = 6;
+    private static final int FACTOR = 7;
+    private static final int UNARY = 8;
+    private static final int CALL = 9;
+    private static final Map<TokenType, Integer> INFIX = new EnumMap<>(TokenType.class);
+    static {
+        INFIX.put(TokenType.EQUAL, ASSIGNMENT);
+        INFIX.put(TokenType.OR, OR);
+        INFIX.put(TokenType.AND, AND);
+        INFIX.put(TokenType.BANG_EQUAL, EQUALITY);
+        INFIX.put(TokenType.EQUAL_EQUAL, EQUALITY);
+        INFIX.put(TokenType.GREATER, COMPARISON);
+        INFIX.put(TokenType.GREATER_EQUAL, COMPARISON);
+        INFIX.put(TokenType.LESS, COMPARISON);
+        INFIX.put(TokenType.LESS_EQUAL, COMPARISON);
+        INFIX.put(TokenType.MINUS, TERM);
+        INFIX.put(TokenType.PLUS, TERM);
+        INFIX.put(TokenType.SLASH, FACTOR);
+        INFIX.put(TokenType.STAR, FACTOR);
+        INFIX.put(TokenType.LEFT_PAREN, CALL);
+        INFIX.put(TokenType.DOT, CALL);
+    }
+    // height of the deepest expression tree before it is an error, so generated code can't run
+    // the parser or the passes after it (they recurse over the tree) out of stack. Nesting and
+    // long flat chains count alike: a+b+c is as deep as a+(b+(c)).
+    static final int MAX_DEPTH = 1000;
     private final List<Token> tokens;
+    private final ErrorReporter reporter;
     private int current = 0;
-
-    public Parser(List<Token> tokens) {
+    // number of loops around the statement being parsed, inside the current function
+    private int loops = 0;
+    // expressions being parsed right now, one inside the other
+    private int depth = 0;
+    // height of the expression tree parsed or built last
+    private int height = 0;
+
+    public Parser(List<Token> tokens, ErrorReporter reporter) {
         this.tokens = tokens;
+        this.reporter = reporter;
     }
 
-    // initial method to call to parse the entire code
+    // initial method to call to parse the entire code, a statement with an error is left out
+    // and parsing stops once the reporter has given up on the source
     List<Stmt> parse(){
         List<Stmt> statements = new ArrayList<>();
-        while(!isAtEnd()){
-            statements.add(declarations());
+        while(!isAtEnd() && !reporter.gaveUp()){
+            Stmt statement = declarations();
+            if(statement != null) statements.add(statement);
         }
+        if(!isAtEnd()) reporter.stopped();
         return statements;
     }
 
     private Stmt declarations() {
+        Token first = peek();
+        Stmt statement = declaration();
+        if(statement != null) {
+            statement.line = first.line;
+            statement.endLine = previous().line;
+        }
+        return statement;
+    }
+
+    private Stmt declaration() {
         try{
+            if(match(TokenType.CLASS)) return classDeclaration();
             if(match(TokenType.FUN)) return funcDeclaration("function");
             if(match(TokenType.VAR)) return varDeclaration();
             if(match(TokenType.IDENTIFIER)){
@@ -83,7 +151,23 @@ public class Parser {
         }
     }
 
-    private Stmt funcDeclaration(String kind) {
+    private Stmt classDeclaration() {
+        Token name = consume(TokenType.IDENTIFIER, "Expect class name.");
+        Expr.Variable superclass = null;
+        if(match(TokenType.LESS)) {
+            consume(TokenType.IDENTIFIER, "Expect superclass name.");
+            superclass = new Expr.Variable(previous());
+        }
+        consume(TokenType.LEFT_BRACE, "Expect '{' before class body.");
+        List<Stmt.Function> methods = new ArrayList<>();
+        while(!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+            methods.add(funcDeclaration("method"));
+        }
+        consume(TokenType.RIGHT_BRACE, "Expect '}' after class body.");
+        return new Stmt.Class(name, superclass, methods.toArray(new Stmt.Function[0]));
+    }
+
+    private Stmt.Function funcDeclaration(String kind) {
         Token name = consume(TokenType.IDENTIFIER, "Expect" + kind + "name");
         consume(TokenType.LEFT_PAREN, "Expect '(' in the start of new function definition");
         List<Token> params = new ArrayList<>();
@@ -96,8 +180,12 @@ public class Parser {
         }
         consume(TokenType.RIGHT_PAREN, "Expect ')' in the end of function");
         consume(TokenType.LEFT_BRACE, "Expect '{' in the start of function body");
-        List<Stmt> body = block();
-        return new Stmt.Function(name, params, body);
+        // break and continue can't leave the function
+        int enclosingLoops = loops;
+        loops = 0;
+        Stmt[] body = block();
+        loops = enclosingLoops;
+        return new Stmt.Function(name, params.toArray(new Token[0]), body);
     }
 
     private Stmt varDeclaration() {
@@ -126,10 +214,21 @@ public class Parser {
         if(match(TokenType.WHILE)) return whileStatement();
         if(match(TokenType.PRINT)) return printStatement();
         if(match(TokenType.RETURN)) return returnStatement();
+        if(match(TokenType.BREAK)) return new Stmt.Break(jumpStatement("break"));
+        if(match(TokenType.CONTINUE)) return new Stmt.Continue(jumpStatement("continue"));
         if(match(TokenType.LEFT_BRACE)) return new Stmt.Block(block());
         return expressionStatement();
     }
 
+    private Token jumpStatement(String kind) {
+        Token keyword = previous();
+        if(loops == 0) {
+            error(keyword, "Can't use '" + kind + "' outside of a loop.");
+        }
+        consume(TokenType.SEMICOLON, "Expect ';' after " + kind + ".");
+        return keyword;
+    }
+
     private Stmt returnStatement() {
         Token keyword = previous();
         Expr value = null;
@@ -145,8 +244,8 @@ public class Parser {
         Expr condition = expression();
         consume(TokenType.RIGHT_PAREN, "Expect ')' after if statement.");
         consume(TokenType.LEFT_BRACE, "Expect '{' after if start of if block.");
-        List<Stmt> thenBranchStmts = block();
-        List<Stmt> elseBranchStmts = null;
+        Stmt[] thenBranchStmts = block();
+        Stmt[] elseBranchStmts = null;
         if(match(TokenType.ELSE)) {
             consume(TokenType.LEFT_BRACE, "Expect '{' after start of else block.");
             elseBranchStmts = block();
@@ -154,6 +253,7 @@ public class Parser {
         return new Stmt.If(condition, thenBranchStmts, elseBranchStmts);
     }
     private Stmt forStatement() {
+        Token keyword = previous();
         consume(TokenType.LEFT_PAREN, "Expect '(' after 'for' statement.");
         Stmt initializer;
         if(match(TokenType.SEMICOLON)) {
@@ -168,39 +268,46 @@ public class Parser {
             condition = expression();
         }
         consume(TokenType.SEMICOLON, "Expect ';' after loop condition.");
-        Stmt increment = null;
+        Expr increment = null;
         if(!check(TokenType.RIGHT_PAREN)) {
-            advance();
-            increment = reassignmentDeclaration();
+            increment = expression();
+            // older scripts end the increment with a ';' as well
+            match(TokenType.SEMICOLON);
         }
         consume(TokenType.RIGHT_PAREN, "Expect ')' after for loop statement.");
         consume(TokenType.LEFT_BRACE, "Expect '{' after fot loop statement.");
-        List<Stmt> statements = block();
-        if(increment != null) {
-            statements.addFirst(increment);
-        }
-        if(condition == null) {
-            condition = new Expr.Literal(true);
-        }
-        return new Stmt.While(condition, statements, initializer);
+        Stmt[] body = loopBody();
+        return new Stmt.For(keyword, initializer, condition, increment, body);
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(TokenType.LEFT_PAREN, "Expect '(' after while statement.");
         Expr condition = expression();
         consume(TokenType.RIGHT_PAREN, "Expect ')' after while statement.");
         consume(TokenType.LEFT_BRACE, "Expect '{' after start of while block.");
-        List<Stmt> bodyStmts = block();
-        return new Stmt.While(condition, bodyStmts, null);
+        Stmt[] bodyStmts = loopBody();
+        return new Stmt.While(keyword, condition, bodyStmts);
+    }
+
+    private Stmt[] loopBody() {
+        loops++;
+        try {
+            return block();
+        } finally {
+            loops--;
+        }
     }
 
-    private List<Stmt> block() {
+    // stops early once the reporter gave up, the missing '}' unwinds to parse()
+    private Stmt[] block() {
         List<Stmt> statements = new ArrayList<>();
-        while(!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declarations());
+        while(!check(TokenType.RIGHT_BRACE) && !isAtEnd() && !reporter.gaveUp()) {
+            Stmt statement = declarations();
+            if(statement != null) statements.add(statement);
         }
         consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
-        return statements;
+        return statements.toArray(new Stmt[0]);
     }
 
     private Stmt printStatement() {
@@ -215,122 +322,123 @@ public class Parser {
         return new Stmt.Expression(value);
     }
 
-    // expression -> equality
+    // expression -> assignment, parsed by binding power (see INFIX)
     private Expr expression()
     {
-        return assignment();
+        return expression(ASSIGNMENT);
     }
 
-    private Expr assignment()
+    // Parses an expression whose infix operators bind at least as tight as precedence.
+    // A prefix is parsed first, then every infix operator strong enough extends it to the left
+    // of the next one. Operators parse their right operand one level higher, which makes them
+    // left associative, only assignment parses it at its own level and is right associative.
+    private Expr expression(int precedence)
     {
-        Expr expr = or();
-
-        if(match(TokenType.EQUAL)) {
-            Token equals = previous();
-            Expr value = assignment();
-
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable) expr).name;
-                return new Expr.Assign(name, expr);
+        if(++depth > MAX_DEPTH) throw tooDeep();
+        try {
+            Token first = peek();
+            Expr expr = span(prefix(), first);
+            while(true) {
+                // the expressions around this one are at least a level each
+                if(depth - 1 + height > MAX_DEPTH) throw tooDeep();
+                Integer infix = INFIX.get(peek().type);
+                if(infix == null || infix < precedence) break;
+                expr = span(infix(expr, advance(), infix), first);
             }
-            error(equals, "Invalid assignment target.");
+            return expr;
+        } finally {
+            depth--;
         }
-        return expr;
     }
 
-    private Expr or() {
-        Expr expr = and();
-        if(match(TokenType.OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-        return expr;
+    private ParseError tooDeep() {
+        return error(peek(), "Expression nested too deeply, the limit is " + MAX_DEPTH + " levels.");
     }
 
-    private Expr and() {
-        Expr expr = equality();
-        if(match(TokenType.AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
-        }
+    // records the lines of the tokens from first to the last one consumed
+    private Expr span(Expr expr, Token first) {
+        expr.line = first.line;
+        expr.endLine = previous().line;
         return expr;
     }
 
-    // equality -> comparison (("!=" | "==") comparison)*
-    private Expr equality()
-    {
-        Expr expr = comparison();
-
-        while(match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL))
-        {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-    // comparison -> term ( ( ">" | ">=" | "<" | "<=" ) term)*
-    private Expr comparison() {
-        Expr expr = term();
-        while(match(TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL))
+    // unary and primary expressions
+    private Expr prefix() {
+        if(match(TokenType.BANG, TokenType.MINUS))
         {
             Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+            Expr right = expression(UNARY);
+            height++;
+            return new Expr.Unary(operator, right);
         }
-        return expr;
-    }
-    // term -> factor( ("-" | "+") factor) *
-    private Expr term() {
-        Expr expr = factor();
-        while(match(TokenType.MINUS, TokenType.PLUS))
-        {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
+        height = 1;
+        if(match(TokenType.FALSE)) return new Expr.Literal(false);
+        if(match(TokenType.TRUE)) return new Expr.Literal(true);
+        if(match(TokenType.NIL)) return new Expr.Literal(null);
+
+        if(match(TokenType.NUMBER , TokenType.STRING)) return new Expr.Literal(previous().literal);
 
+        if(match(TokenType.THIS)) return new Expr.This(previous());
+        if(match(TokenType.SUPER)) {
+            Token keyword = previous();
+            consume(TokenType.DOT, "Expect '.' after 'super'.");
+            Token method = consume(TokenType.IDENTIFIER, "Expect superclass method name.");
+            return new Expr.Super(keyword, method);
         }
-        return expr;
-    }
-    // factor -> unary (("/" | "*") unary) *
-    private Expr factor() {
-        Expr expr = unary();
 
-        while (match(TokenType.SLASH, TokenType.STAR))
-        {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
+        if (match(TokenType.IDENTIFIER)){
+            return new Expr.Variable(previous());
         }
-        return expr;
-    }
-    // unary -> ("!" | "-") unary | primary
-    private Expr unary() {
-        if(match(TokenType.BANG, TokenType.MINUS))
-        {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+        if(match(TokenType.LEFT_PAREN)) {
+            Expr expr = expression();
+            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+            height++;
+            return new Expr.Grouping(expr);
         }
-        return call();
+        throw error(peek(), "Expect expression.");
     }
 
-    private Expr call() {
-        Expr expr = primary();
-        while (true){
-            if(match(TokenType.LEFT_PAREN)){
-                expr = finishCall(expr);
+    // the expression an infix operator (already consumed) makes of left and what follows,
+    // height goes from the height of left to the one of the result
+    private Expr infix(Expr left, Token operator, int precedence) {
+        int leftHeight = height;
+        switch (operator.type) {
+            case TokenType.EQUAL: {
+                Expr value = expression(ASSIGNMENT);
+                height = Math.max(leftHeight, height) + 1;
+                if (left instanceof Expr.Variable) {
+                    Token name = ((Expr.Variable) left).name;
+                    return new Expr.Assign(name, value);
+                } else if (left instanceof Expr.Get) {
+                    Expr.Get get = (Expr.Get) left;
+                    return new Expr.Set(get.object, get.name, value);
+                }
+                error(operator, "Invalid assignment target.");
+                return left;
+            }
+            case TokenType.OR:
+            case TokenType.AND: {
+                Expr right = expression(precedence + 1);
+                height = Math.max(leftHeight, height) + 1;
+                return new Expr.Logical(left, operator, right);
             }
-            else {
-                break;
+            case TokenType.LEFT_PAREN:
+                return finishCall(left);
+            case TokenType.DOT: {
+                Token name = consume(TokenType.IDENTIFIER, "Expect property name after '.'.");
+                height = leftHeight + 1;
+                return new Expr.Get(left, name);
+            }
+            default: {
+                Expr right = expression(precedence + 1);
+                height = Math.max(leftHeight, height) + 1;
+                return new Expr.Binary(left, operator, right);
             }
         }
-        return expr;
     }
 
     private Expr finishCall(Expr expr) {
+        int callHeight = height;
         List<Expr> arguments = new ArrayList<>();
         if(!check(TokenType.RIGHT_PAREN)){
             do{
@@ -338,29 +446,12 @@ public class Parser {
                     error(peek(), "Can't have more than 255 arguments.");
                 }
                 arguments.add(expression());
+                callHeight = Math.max(callHeight, height);
             } while(match(TokenType.COMMA));
         }
         Token paren = consume(TokenType.RIGHT_PAREN, "Expect ')' after finish call.");
-        return new Expr.Call(expr, paren, arguments);
-    }
-
-    // primary ->  NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")" ;
-    private Expr primary() {
-        if(match(TokenType.FALSE)) return new Expr.Literal(false);
-        if(match(TokenType.TRUE)) return new Expr.Literal(true);
-        if(match(TokenType.NIL)) return new Expr.Literal(null);
-
-        if(match(TokenType.NUMBER , TokenType.STRING)) return new Expr.Literal(previous().literal);
-
-        if (match(TokenType.IDENTIFIER)){
-            return new Expr.Variable(previous());
-        }
-        if(match(TokenType.LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
-        throw error(peek(), "Expect expression.");
+        height = callHeight + 1;
+        return new Expr.Call(expr, paren, arguments.toArray(new Expr[0]));
     }
 
     private Token consume(TokenType tokenType, String err_message) {
@@ -371,11 +462,12 @@ public class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
     private void synchronize() {
+        if(reporter.gaveUp()) return;
         advance();
         while(!isAtEnd()) {
             if(previous().type == TokenType.SEMICOLON) return;
@@ -0,0 +1,169 @@
+package com.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+    A sampling profiler of the Lox code (--profile[=ms]).
+    The interpreter keeps a shadow stack of the Lox functions running: LoxFunction.call pushes
+    and pops the function, every statement stores its line in the top entry. A sampler thread
+    reads that stack every interval and counts the samples per function (self: on top, total:
+    anywhere on the stack) and per line. The stack is written without locks or volatiles and
+    read racily, a sample can be a statement off, that is fine for statistics and keeps the
+    interpreter fast.
+    Every sample is also a com.lox.Sample JFR event with the function, the line and the whole
+    stack, so with -XX:StartFlightRecording the Lox samples are in the recording next to the
+    Java ones (jfr print --events com.lox.Sample).
+    Inlined calls count for their caller, natives for the line that called them and compiled
+    functions (--jit) for the line that called them first.
+*/
+final class Profiler {
+    static final int DEFAULT_INTERVAL_MILLIS = 10;
+    private static final int TOP = 10;
+
+    @Name("com.lox.Sample")
+    @Label("Lox Sample")
+    @Category("Lox")
+    @Description("The Lox function and line running when the profiler took a sample")
+    @StackTrace(false)
+    static final class SampleEvent extends Event {
+        @Label("Function")
+        String function;
+        @Label("Line")
+        int line;
+        @Label("Stack")
+        @Description("The functions on the stack, outermost first, separated by ';'")
+        String stack;
+    }
+
+    private final int intervalMillis;
+    // The shadow stack, entry 0 is the script. Only the interpreter thread writes it, the arrays
+    // are replaced when they grow.
+    private Stmt.Function[] functions = new Stmt.Function[64];
+    private int[] lines = new int[64];
+    private int depth = 1;
+    // the samples, only the sampler thread touches them until it stopped
+    private final Thread sampler;
+    private volatile boolean running = true;
+    private long samples = 0;
+    private final Map<String, long[]> functionSamples = new HashMap<>();
+    private final Map<String, long[]> lineSamples = new HashMap<>();
+
+    Profiler(int intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        this.sampler = new Thread(this::sample, "jlox-profiler");
+        sampler.setDaemon(true);
+    }
+
+    void start() {
+        sampler.start();
+    }
+
+    void enter(Stmt.Function function) {
+        if(depth == functions.length) {
+            lines = Arrays.copyOf(lines, depth * 2);
+            functions = Arrays.copyOf(functions, depth * 2);
+        }
+        lines[depth] = function.name.line;
+        functions[depth] = function;
+        depth++;
+    }
+
+    void exit() {
+        depth--;
+    }
+
+    void line(int line) {
+        lines[depth - 1] = line;
+    }
+
+    private void sample() {
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException err) {
+                return;
+            }
+            // a consistent enough copy: the arrays of the moment and a depth that fits them
+            Stmt.Function[] stack = functions;
+            int[] stackLines = lines;
+            int top = Math.min(depth, Math.min(stack.length, stackLines.length)) - 1;
+            // nothing ran yet, the source is still scanned and parsed
+            if(top < 0 || top == 0 && stackLines[0] == 0) continue;
+            record(stack, stackLines, top);
+        }
+    }
+
+    private void record(Stmt.Function[] stack, int[] stackLines, int top) {
+        samples++;
+        String function = name(stack[top]);
+        functionSamples.computeIfAbsent(function, key -> new long[2])[0]++;
+        // total counts a function once per sample, also when it recursed
+        List<String> counted = new ArrayList<>();
+        StringBuilder folded = new StringBuilder();
+        for (int i = 0; i <= top; ++i) {
+            String name = name(stack[i]);
+            if(!counted.contains(name)) {
+                counted.add(name);
+                functionSamples.computeIfAbsent(name, key -> new long[2])[1]++;
+            }
+            if(i > 0) folded.append(';');
+            folded.append(name);
+        }
+        lineSamples.computeIfAbsent("line " + stackLines[top] + " in " + function, key -> new long[1])[0]++;
+
+        SampleEvent event = new SampleEvent();
+        if(event.shouldCommit()) {
+            event.function = function;
+            event.line = stackLines[top];
+            event.stack = folded.toString();
+            event.commit();
+        }
+    }
+
+    private static String name(Stmt.Function function) {
+        if(function == null) return "<script>";
+        return function.name.lexeme + " (line " + function.name.line + ")";
+    }
+
+    // stops the sampler and prints the hottest functions and lines
+    void report(PrintStream out) {
+        running = false;
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+        out.println("profile: " + samples + " samples, one every " + intervalMillis + " ms");
+        if(samples == 0) return;
+        out.println("   self   total  function");
+        List<Map.Entry<String, long[]>> byFunction = new ArrayList<>(functionSamples.entrySet());
+        byFunction.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        for(Map.Entry<String, long[]> entry : byFunction.subList(0, Math.min(TOP, byFunction.size()))) {
+            out.println(String.format("%6.1f%% %6.1f%%  %s", percent(entry.getValue()[0]),
+                    percent(entry.getValue()[1]), entry.getKey()));
+        }
+        out.println("   self  line");
+        List<Map.Entry<String, long[]>> byLine = new ArrayList<>(lineSamples.entrySet());
+        byLine.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        for(Map.Entry<String, long[]> entry : byLine.subList(0, Math.min(TOP, byLine.size()))) {
+            out.println(String.format("%6.1f%%  %s", percent(entry.getValue()[0]), entry.getKey()));
+        }
+    }
+
+    private double percent(long count) {
+        return 100.0 * count / samples;
+    }
+}
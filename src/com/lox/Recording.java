@@ -0,0 +1,234 @@
+package com.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/*
+    Record and replay of a run, so that a script reading clocks runs the same way every time
+    (--record=<file> script.jlox, then --replay=<file>).
+    A recording holds the source, the result of every native call in order and a trace of the
+    statements executed: how many ran and a checksum of their kinds and lines, also taken at
+    every native call. Replay runs the recorded source with every native wrapped: the native
+    still runs (arrays get filled, bench calls its function), then its recorded result is
+    returned in place of the new one. Numbers are kept as their bits, a replayed run computes
+    the same values as the recorded one.
+    Replay stops with a RuntimeError when the script calls another native than the recording
+    has next, a different statement trace (another build optimizing differently) is only
+    reported. Results that aren't nil, booleans, numbers or strings (an array) are not
+    recorded, the new result is used.
+    The JIT stays off while recording or replaying, compiled code doesn't report its statements.
+
+    Format, big endian (DataOutputStream):
+      "JLOXREC" version:int source:bytes
+      'N' name:UTF statements:long checksum:long value   per native call
+      'E' statements:long checksum:long                  at the end
+    a value is a tag byte, NIL FALSE TRUE, NUMBER bits:long, STRING bytes or OTHER, and bytes
+    are a length:int and that much UTF-8.
+*/
+final class Recording {
+    private static final String MAGIC = "JLOXREC";
+    private static final int VERSION = 1;
+    private static final byte NATIVE = 'N';
+    private static final byte END = 'E';
+    private static final byte NIL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+    private static final byte OTHER = 5;
+
+    // a native wrapped for the recording, only called through LoxCallable
+    private final class Recorded implements LoxCallable {
+        private final NativeFunction function;
+
+        Recorded(NativeFunction function) {
+            this.function = function;
+        }
+
+        @Override
+        public int arity() {
+            return function.arity();
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            Object result = function.call(interpreter, new Token(TokenType.IDENTIFIER, function.name, null, line), arguments);
+            return nativeCall(function.name, result);
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    final String source;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    // the statement trace so far and the line of the last statement
+    private long statements = 0;
+    private long checksum = 0;
+    private int line = -1;
+    private long nativeCalls = 0;
+    // the line of the first native call the statements before differ from the recording, -1
+    private int divergedAt = -1;
+
+    private Recording(String source, DataOutputStream out, DataInputStream in) {
+        this.source = source;
+        this.out = out;
+        this.in = in;
+    }
+
+    // starts a recording of a run of the source into the file
+    static Recording record(Path path, String source) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        out.writeBytes(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, source);
+        return new Recording(source, out, null);
+    }
+
+    // opens a recording to replay, the run is of its source
+    static Recording replay(Path path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        byte[] magic = new byte[MAGIC.length()];
+        in.readFully(magic);
+        if(!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII)) || in.readInt() != VERSION) {
+            in.close();
+            throw new IOException(path + " is not a jlox recording");
+        }
+        return new Recording(readString(in), null, in);
+    }
+
+    boolean isReplay() {
+        return in != null;
+    }
+
+    // wraps the natives of the globals, the Interpreter then calls them as plain LoxCallables
+    void install(GlobalTable globals) {
+        globals.replaceAll(value -> value instanceof NativeFunction function ? new Recorded(function) : value);
+    }
+
+    // called by the Interpreter before every statement
+    void statement(Stmt stmt) {
+        statements++;
+        checksum = 31 * checksum + ((long) stmt.line << 4) + stmt.kind;
+        line = stmt.line;
+    }
+
+    private Object nativeCall(String name, Object result) {
+        nativeCalls++;
+        Token at = new Token(TokenType.IDENTIFIER, name, null, line);
+        try {
+            if(!isReplay()) {
+                out.writeByte(NATIVE);
+                out.writeUTF(name);
+                out.writeLong(statements);
+                out.writeLong(checksum);
+                writeValue(result);
+                return result;
+            }
+            if(in.readByte() != NATIVE) {
+                throw new RuntimeError(at, "Replay diverged: the recording has no call of " + name + " here.");
+            }
+            String recorded = in.readUTF();
+            if(!recorded.equals(name)) {
+                throw new RuntimeError(at, "Replay diverged: the recording calls " + recorded + " here, not " + name + ".");
+            }
+            long recordedStatements = in.readLong();
+            long recordedChecksum = in.readLong();
+            if((recordedStatements != statements || recordedChecksum != checksum) && divergedAt < 0) divergedAt = line;
+            return readValue(result);
+        } catch (EOFException err) {
+            throw new RuntimeError(at, "Replay diverged: the recording ends before this call of " + name + ".");
+        } catch (IOException err) {
+            throw new RuntimeError(at, "Recording failed: " + err.getMessage());
+        }
+    }
+
+    /*
+        Ends the recording, or checks that the replay ran the statements the recording did and
+        reports it (the line bin/replay-bench reads).
+    */
+    void finish(PrintStream err, long nanos) throws IOException {
+        if(!isReplay()) {
+            out.writeByte(END);
+            out.writeLong(statements);
+            out.writeLong(checksum);
+            out.close();
+            return;
+        }
+        try {
+            int tag;
+            while ((tag = in.read()) == NATIVE) {
+                // natives the replay didn't get to, it ended early
+                in.readUTF();
+                in.readLong();
+                in.readLong();
+                readValue(null);
+            }
+            if(tag != END) throw new IOException("the recording is truncated");
+            long recordedStatements = in.readLong();
+            long recordedChecksum = in.readLong();
+            if(recordedStatements != statements || recordedChecksum != checksum || divergedAt >= 0) {
+                err.println("replay: the statements differ from the recording"
+                        + (divergedAt >= 0 ? " from the native call at line " + divergedAt : "")
+                        + ", " + statements + " ran, " + recordedStatements + " were recorded");
+            }
+        } finally {
+            in.close();
+        }
+        err.println("replay: " + statements + " statements, " + nativeCalls + " native calls, "
+                + String.format("%.3f", nanos / 1e6) + " ms");
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if(value == null) {
+            out.writeByte(NIL);
+        } else if(value instanceof Boolean bool) {
+            out.writeByte(bool ? TRUE : FALSE);
+        } else if(value instanceof Double number) {
+            out.writeByte(NUMBER);
+            out.writeLong(Double.doubleToRawLongBits(number));
+        } else if(value instanceof String string) {
+            out.writeByte(STRING);
+            writeString(out, string);
+        } else {
+            out.writeByte(OTHER);
+        }
+    }
+
+    // the recorded value, or the result of this run when nothing was recorded
+    private Object readValue(Object result) throws IOException {
+        switch (in.readByte()) {
+            case NIL: return null;
+            case FALSE: return false;
+            case TRUE: return true;
+            case NUMBER: return Double.longBitsToDouble(in.readLong());
+            case STRING: return readString(in);
+            case OTHER: return result;
+            default: throw new IOException("the recording is corrupt");
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,108 @@
+package com.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    The Repl keeps the pending input of the prompt between lines.
+    Every new line is scanned once and its tokens are appended to the pending entry, only an
+    unterminated string or comment is scanned again once the rest of it arrives.
+    An entry is handed to the Parser when all '{' and '(' are closed and it ends in ';' or '}',
+    so a function or a block can be typed over several lines.
+    The Interpreter is shared by all the entries, so whatever the earlier entries defined
+    stays defined, and the cost of an entry only depends on the entry itself and not on how
+    many globals the session has created.
+*/
+class Repl {
+    private final Interpreter interpreter;
+    private final StringBuilder pending = new StringBuilder();
+    private final List<Token> tokens = new ArrayList<>();
+    // offset in pending from where the next scan starts
+    private int scanFrom = 0;
+    // line number of the session at scanFrom
+    private int line = 1;
+    private boolean incomplete = false;
+    private int braces = 0;
+    private int parens = 0;
+
+    Repl(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // true when some lines were read but they don't form a complete entry yet
+    boolean isPending() {
+        return pending.length() > 0;
+    }
+
+    // Feeds one line of input, runs the entry once it is complete.
+    // An empty line forces a pending entry through the parser as it is (e.g. a missing ';'),
+    // unless a string, comment, block or parenthesis is still open.
+    void feed(String input) {
+        pending.append(input).append('\n');
+        scan();
+        interpreter.reporter.flush();
+        if(isComplete() || (input.trim().isEmpty() && isBalanced())) {
+            submit();
+        }
+    }
+
+    private void scan() {
+        Scanner scanner = new Scanner(pending.substring(scanFrom), line, interpreter.reporter);
+        List<Token> scanned = scanner.scanFragment();
+        for(Token token : scanned) {
+            switch (token.type) {
+                case TokenType.LEFT_BRACE:
+                    braces++;
+                    break;
+                case TokenType.RIGHT_BRACE:
+                    braces--;
+                    break;
+                case TokenType.LEFT_PAREN:
+                    parens++;
+                    break;
+                case TokenType.RIGHT_PAREN:
+                    parens--;
+                    break;
+            }
+        }
+        tokens.addAll(scanned);
+        line = scanner.line();
+        incomplete = scanner.incompleteAt() >= 0;
+        scanFrom = incomplete ? scanFrom + scanner.incompleteAt() : pending.length();
+    }
+
+    private boolean isBalanced() {
+        return !incomplete && braces <= 0 && parens <= 0;
+    }
+
+    private boolean isComplete() {
+        if(!isBalanced() || tokens.isEmpty()) return false;
+        TokenType last = tokens.getLast().type;
+        return last == TokenType.SEMICOLON || last == TokenType.RIGHT_BRACE;
+    }
+
+    private void submit() {
+        List<Token> entry = new ArrayList<>(tokens);
+        entry.add(new Token(TokenType.EOF, "", null, line));
+        reset();
+        ErrorReporter reporter = interpreter.reporter;
+        if(!reporter.hadError) {
+            Parser parser = new Parser(entry, reporter);
+            List<Stmt> statements = parser.parse();
+            reporter.flush();
+            if(!reporter.hadError) {
+                interpreter.interpret(Lox.prepare(statements, interpreter));
+            }
+        }
+        reporter.clearErrors();
+    }
+
+    private void reset() {
+        pending.setLength(0);
+        tokens.clear();
+        scanFrom = 0;
+        incomplete = false;
+        braces = 0;
+        parens = 0;
+    }
+}
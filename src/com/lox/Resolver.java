@@ -0,0 +1,491 @@
+package com.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+/*
+    Free variable analysis, run between the Parser and the Interpreter.
+    For every Stmt.Function it collects the names the function uses from the local scopes around
+    it, so its closure copies just those bindings instead of keeping the whole chain of enclosing
+    Environments (and everything bound in them) alive. The scopes here mirror the Environments
+    the Interpreter creates: blocks, branches, loop bodies and the parameters of a function.
+    A captured variable that is assigned somewhere, or captured before it got its value (a
+    function calling itself), is marked boxed. It then lives in a Cell shared by its scope and
+    the closures, every other captured variable is copied by value.
+    Names that are not found in a local scope are globals, they get their slot in the GlobalTable.
+    When such a name turns out to be declared later in a local scope around the function (local
+    functions calling each other), the function keeps the whole chain and the name stays dynamic.
+    Methods always keep the whole chain, 'this' and 'super' live in scopes around them.
+    A function that declares no functions or classes creates no closures, nothing outlives a
+    call of it: its locals get slots in a frame on the Interpreter's FrameStack instead of
+    Environments (Stmt.Function.frameSlots, the slot of each local in its declaration and uses).
+*/
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final class Local {
+        // marks the declaration of the variable as boxed, null for 'this' and 'super'
+        final Runnable box;
+        boolean defined = false;
+        boolean captured = false;
+        boolean assigned = false;
+        boolean capturedEarly = false;
+        // the frame slot of a local of a function running on the frame stack, -1 otherwise
+        int slot = -1;
+
+        Local(Runnable box) {
+            this.box = box;
+        }
+    }
+
+    // a function being resolved and the index of its own scope
+    private static final class OpenFunction {
+        final Stmt.Function declaration;
+        final int scope;
+        // the frame slots given out so far, -1 when the function needs Environments
+        int slots;
+
+        OpenFunction(Stmt.Function declaration, int scope, int slots) {
+            this.declaration = declaration;
+            this.scope = scope;
+            this.slots = slots;
+        }
+    }
+
+    // a name used inside functions that was not declared (yet) in any local scope
+    private static final class Unresolved {
+        final String name;
+        final boolean assigned;
+        final List<OpenFunction> functions;
+        // stores the global slot in the node, once the name is known to be a global
+        final IntConsumer global;
+        // number of scopes around the use that are still open
+        int depth;
+
+        Unresolved(String name, boolean assigned, List<OpenFunction> functions, IntConsumer global, int depth) {
+            this.name = name;
+            this.assigned = assigned;
+            this.functions = functions;
+            this.global = global;
+            this.depth = depth;
+        }
+    }
+
+    private final List<Map<String, Local>> scopes = new ArrayList<>();
+    private final List<OpenFunction> functions = new ArrayList<>();
+    private final List<Unresolved> unresolved = new ArrayList<>();
+    private final GlobalTable globals;
+
+    Resolver(GlobalTable globals) {
+        this.globals = globals;
+    }
+
+    void resolve(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            resolve(statement);
+        }
+        // what no local scope declared in the end is a global
+        for(Unresolved use : unresolved) {
+            bindGlobal(use.name, use.global);
+        }
+        unresolved.clear();
+    }
+
+    private void bindGlobal(String name, IntConsumer global) {
+        if(global != null) global.accept(globals.slot(name));
+    }
+
+    private int globalSlot(Token name) {
+        return scopes.isEmpty() ? globals.slot(name.lexeme) : -1;
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void resolveBlock(Stmt[] statements) {
+        beginScope();
+        for(Stmt statement : statements) {
+            resolve(statement);
+        }
+        endScope();
+    }
+
+    private void resolveFunction(Stmt.Function function, boolean keepsChain) {
+        function.captures = keepsChain ? null : new ArrayList<>();
+        OpenFunction open = new OpenFunction(function, scopes.size(), runsInFrame(function) ? 0 : -1);
+        functions.add(open);
+        beginScope();
+        for (int i = 0; i < function.params.length; ++i) {
+            int index = i;
+            declare(function.params[i], () -> boxParam(function, index)).defined = true;
+        }
+        for(Stmt statement : function.body) {
+            resolve(statement);
+        }
+        endScope();
+        functions.removeLast();
+        function.frameSlots = open.slots;
+    }
+
+    // No function or class declared inside, and no name declared twice in a scope: that is a
+    // runtime error the Environments report, such a function keeps them.
+    private static boolean runsInFrame(Stmt.Function function) {
+        Set<String> scope = new HashSet<>();
+        for(Token param : function.params) {
+            if(!scope.add(param.lexeme)) return false;
+        }
+        // the parameters and the body share a scope
+        return declaresOnce(function.body, scope);
+    }
+
+    private static boolean declaresOnce(Stmt[] statements, Set<String> scope) {
+        for(Stmt stmt : statements) {
+            switch (stmt.kind) {
+                case Stmt.FUNCTION:
+                case Stmt.CLASS:
+                    return false;
+                case Stmt.VAR:
+                    if(!scope.add(((Stmt.Var) stmt).name.lexeme)) return false;
+                    break;
+                case Stmt.BLOCK:
+                    if(!declaresOnce(((Stmt.Block) stmt).statements, new HashSet<>())) return false;
+                    break;
+                case Stmt.IF: {
+                    Stmt.If ifStmt = (Stmt.If) stmt;
+                    if(!declaresOnce(ifStmt.thenBranches, new HashSet<>())) return false;
+                    if(ifStmt.elseBranches != null && !declaresOnce(ifStmt.elseBranches, new HashSet<>())) return false;
+                    break;
+                }
+                case Stmt.WHILE:
+                    if(!declaresOnce(((Stmt.While) stmt).body, new HashSet<>())) return false;
+                    break;
+                case Stmt.FOR: {
+                    Stmt.For forStmt = (Stmt.For) stmt;
+                    if(forStmt.initializer != null && !declaresOnce(new Stmt[] { forStmt.initializer }, new HashSet<>())) {
+                        return false;
+                    }
+                    if(!declaresOnce(forStmt.body, new HashSet<>())) return false;
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void boxParam(Stmt.Function function, int index) {
+        if(function.boxedParams == null) function.boxedParams = new boolean[function.params.length];
+        function.boxedParams[index] = true;
+    }
+
+    private void beginScope() {
+        scopes.add(new HashMap<>());
+    }
+
+    private void endScope() {
+        Map<String, Local> scope = scopes.removeLast();
+        int depth = scopes.size();
+        for (Iterator<Unresolved> it = unresolved.iterator(); it.hasNext(); ) {
+            Unresolved use = it.next();
+            // only scopes around the use count, not the ones opened after it
+            Local local = depth < use.depth ? scope.get(use.name) : null;
+            use.depth = Math.min(use.depth, depth);
+            if(local == null) continue;
+            // declared after the functions using it, they have to see this scope itself
+            for(OpenFunction function : use.functions) {
+                if(function.scope > depth) function.declaration.captures = null;
+            }
+            local.captured = true;
+            local.assigned |= use.assigned;
+            it.remove();
+        }
+        for(Local local : scope.values()) {
+            if(local.box != null && local.captured && (local.assigned || local.capturedEarly)) {
+                local.box.run();
+            }
+        }
+    }
+
+    // the new local, or a detached one for a global
+    private Local declare(Token name, Runnable box) {
+        Local local = new Local(box);
+        if(!scopes.isEmpty()) {
+            scopes.getLast().put(name.lexeme, local);
+            if(!functions.isEmpty() && functions.getLast().slots >= 0) local.slot = functions.getLast().slots++;
+        }
+        return local;
+    }
+
+    private void use(Token name, boolean assign, IntConsumer global) {
+        use(name, assign, global, null);
+    }
+
+    // slot gets the frame slot of the local, only locals of the innermost function have one
+    private void use(Token name, boolean assign, IntConsumer global, IntConsumer slot) {
+        for (int i = scopes.size() - 1; i >= 0; --i) {
+            Local local = scopes.get(i).get(name.lexeme);
+            if(local == null) continue;
+            local.assigned |= assign;
+            if(local.slot >= 0 && slot != null) slot.accept(local.slot);
+            for(OpenFunction function : functions) {
+                if(function.scope <= i) continue;
+                capture(function.declaration, name);
+                local.captured = true;
+                local.capturedEarly |= !local.defined;
+            }
+            return;
+        }
+        if(scopes.isEmpty() || functions.isEmpty()) {
+            bindGlobal(name.lexeme, global);
+        } else {
+            unresolved.add(new Unresolved(name.lexeme, assign, new ArrayList<>(functions), global, scopes.size()));
+        }
+    }
+
+    private static void capture(Stmt.Function function, Token name) {
+        if(function.captures == null) return;
+        for(Token captured : function.captures) {
+            if(captured.lexeme.equals(name.lexeme)) return;
+        }
+        function.captures.add(name);
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        resolveBlock(stmt.thenBranches);
+        if(stmt.elseBranches != null) resolveBlock(stmt.elseBranches);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        stmt.flatBody = resolveLoopBody(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        // like the Interpreter, only a loop with an initializer gets a scope for it
+        if(stmt.initializer != null) {
+            beginScope();
+            resolve(stmt.initializer);
+        }
+        if(stmt.condition != null) resolve(stmt.condition);
+        if(stmt.increment != null) resolve(stmt.increment);
+        stmt.flatBody = resolveLoopBody(stmt.body);
+        if(stmt.initializer != null) endScope();
+        return null;
+    }
+
+    // true when the body declares nothing, it then runs without a scope per iteration
+    private boolean resolveLoopBody(Stmt[] body) {
+        for(Stmt statement : body) {
+            if(statement instanceof Stmt.Var || statement instanceof Stmt.Function || statement instanceof Stmt.Class) {
+                resolveBlock(body);
+                return false;
+            }
+        }
+        for(Stmt statement : body) {
+            resolve(statement);
+        }
+        return true;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        resolveBlock(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        if(stmt.superclass != null) resolve(stmt.superclass);
+        stmt.global = globalSlot(stmt.name);
+        declare(stmt.name, () -> stmt.boxed = true).defined = true;
+        if(stmt.superclass != null) {
+            beginScope();
+            declare(new Token(TokenType.SUPER, "super", null, stmt.name.line), null).defined = true;
+        }
+        for(Stmt.Function method : stmt.methods) {
+            beginScope();
+            declare(LoxFunction.THIS, null).defined = true;
+            resolveFunction(method, true);
+            endScope();
+        }
+        if(stmt.superclass != null) endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        stmt.global = globalSlot(stmt.name);
+        Local local = declare(stmt.name, () -> stmt.boxed = true);
+        resolveFunction(stmt, false);
+        local.defined = true;
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if(stmt.value != null) resolve(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        // like the Interpreter, the initializer still sees the outer variable of the same name
+        if(stmt.initializer != null) resolve(stmt.initializer);
+        stmt.global = globalSlot(stmt.name);
+        Local local = declare(stmt.name, () -> stmt.boxed = true);
+        local.defined = true;
+        stmt.slot = local.slot;
+        return null;
+    }
+
+    @Override
+    public Void visitReassignStmt(Stmt.Reassign stmt) {
+        if(stmt.reInitializer != null) resolve(stmt.reInitializer);
+        use(stmt.name, true, slot -> stmt.global = slot, slot -> stmt.slot = slot);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        use(expr.name, true, slot -> expr.global = slot, slot -> expr.slot = slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        resolve(expr.callee);
+        for(Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        resolve(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        resolve(expr.object);
+        resolve(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        // the method gets bound to 'this', so both are used
+        use(expr.keyword, false, null);
+        use(new Token(TokenType.THIS, "this", null, expr.keyword.line), false, null);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        use(expr.keyword, false, null);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitMemoExpr(Expr.Memo expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    // the inlined body only sees the globals, like the top level function it comes from
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        resolve(expr.callee);
+        for(Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+        List<Map<String, Local>> outerScopes = new ArrayList<>(scopes);
+        List<OpenFunction> outerFunctions = new ArrayList<>(functions);
+        scopes.clear();
+        functions.clear();
+        resolve(expr.body);
+        scopes.addAll(outerScopes);
+        functions.addAll(outerFunctions);
+        return null;
+    }
+
+    @Override
+    public Void visitArgumentExpr(Expr.Argument expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        use(expr.name, false, slot -> expr.global = slot, slot -> expr.slot = slot);
+        return null;
+    }
+}
@@ -7,11 +7,16 @@ import java.util.Map;
 public class Scanner
 {
     private final String source;
+    private final ErrorReporter reporter;
     private final List<Token> tokens = new ArrayList<>();
     private static final Map<String, TokenType> keywords = new HashMap<>();
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    // set when scanning a fragment of a larger, still growing input (REPL)
+    private boolean fragment = false;
+    // offset where an unterminated string/comment started in fragment mode, -1 otherwise
+    private int incompleteAt = -1;
 
     static
     {
@@ -19,6 +24,8 @@ public class Scanner
         keywords.put("else", TokenType.ELSE);
         keywords.put("for", TokenType.FOR);
         keywords.put("while", TokenType.WHILE);
+        keywords.put("break", TokenType.BREAK);
+        keywords.put("continue", TokenType.CONTINUE);
         keywords.put("return", TokenType.RETURN);
         keywords.put("true", TokenType.TRUE);
         keywords.put("false", TokenType.FALSE);
@@ -32,9 +39,16 @@ public class Scanner
         keywords.put("and", TokenType.AND);
         keywords.put("or", TokenType.OR);
     }
-    Scanner(String source)
+    Scanner(String source, ErrorReporter reporter)
     {
         this.source = source;
+        this.reporter = reporter;
+    }
+    Scanner(String source, int line, ErrorReporter reporter)
+    {
+        this.source = source;
+        this.line = line;
+        this.reporter = reporter;
     }
 
     List<Token> scanTokens()
@@ -49,6 +63,35 @@ public class Scanner
         return tokens;
     }
 
+    // Scans a piece of input that may be continued later. No EOF token is added and
+    // a string or block comment running off the end is not an error, its start offset
+    // is remembered instead so the caller can rescan from there once more input arrives.
+    List<Token> scanFragment()
+    {
+        fragment = true;
+        incompleteAt = -1;
+        tokens.clear();
+        while (!isAtEnd() && incompleteAt < 0)
+        {
+            start = current;
+            int tokenLine = line;
+            scanToken();
+            if(incompleteAt >= 0)
+                line = tokenLine;
+        }
+        return tokens;
+    }
+
+    int incompleteAt()
+    {
+        return incompleteAt;
+    }
+
+    int line()
+    {
+        return line;
+    }
+
     private boolean isAtEnd()
     {
         return current >= source.length();
@@ -109,8 +152,17 @@ public class Scanner
                 }
                 else if(match('*'))
                 {
+                    // the lines of the comment count, coverage and errors report source lines
                     while(peek() != '*' && !isAtEnd())
+                    {
+                        if(peek() == '\n') line++;
                         advance();
+                    }
+                    if(fragment && isAtEnd())
+                    {
+                        incompleteAt = start;
+                        break;
+                    }
                     if(!isAtEnd() && peekNext() == '/')
                         advance();
                     if(!isAtEnd())
@@ -143,7 +195,7 @@ public class Scanner
                     identifier();
                 } else
                 {
-                    Lox.error(line, "Unexpected character");
+                    reporter.error(line, "Unexpected character");
                 }
                 break;
         }
@@ -203,9 +255,14 @@ public class Scanner
                 line++;
             advance();
         }
+        if(isAtEnd() && fragment)
+        {
+            incompleteAt = start;
+            return;
+        }
         if(isAtEnd())
         {
-            Lox.error(line, "Unexpected end of string");
+            reporter.error(line, "Unexpected end of string");
             return;
         }
         advance();
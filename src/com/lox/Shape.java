@@ -0,0 +1,46 @@
+package com.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+    The hidden class of a LoxInstance: which field lives at which index of its field array.
+    Instances that got the same fields in the same order share one Shape, adding a field moves
+    an instance to the next Shape along a transition that is created once and then reused.
+    Every LoxClass has its own root, so a Shape also tells the class of the instance, which
+    lets Get sites cache field slots and methods on the Shape alone.
+*/
+final class Shape {
+    private final Map<String, Integer> slots;
+    final int size;
+    private Map<String, Shape> transitions = null;
+
+    Shape() {
+        this.slots = Map.of();
+        this.size = 0;
+    }
+
+    private Shape(Map<String, Integer> slots) {
+        this.slots = slots;
+        this.size = slots.size();
+    }
+
+    // index of the field, -1 when instances of this shape don't have it
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // the shape after adding a field
+    Shape with(String name) {
+        if(transitions == null) transitions = new HashMap<>();
+        Shape next = transitions.get(name);
+        if(next == null) {
+            Map<String, Integer> nextSlots = new HashMap<>(slots);
+            nextSlots.put(name, size);
+            next = new Shape(nextSlots);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
@@ -7,15 +7,37 @@ package com.lox;
     actual implementation of the classes itself.
     Any calling class should only implement the Visitor Interface and define how the
     visitor interface is going to work for them.
+    The node classes are final, an engine can also switch on kind instead of visiting.
 */
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
+
+abstract sealed class Stmt {
+ // the kind of every node class
+ static final int IF = 0;
+ static final int WHILE = 1;
+ static final int FOR = 2;
+ static final int BREAK = 3;
+ static final int CONTINUE = 4;
+ static final int BLOCK = 5;
+ static final int CLASS = 6;
+ static final int EXPRESSION = 7;
+ static final int FUNCTION = 8;
+ static final int PRINT = 9;
+ static final int RETURN = 10;
+ static final int VAR = 11;
+ static final int REASSIGN = 12;
 
-abstract class Stmt {
  interface Visitor<R> {
     R visitIfStmt(If stmt);
     R visitWhileStmt(While stmt);
+    R visitForStmt(For stmt);
+    R visitBreakStmt(Break stmt);
+    R visitContinueStmt(Continue stmt);
     R visitBlockStmt(Block stmt);
+    R visitClassStmt(Class stmt);
     R visitExpressionStmt(Expression stmt);
     R visitFunctionStmt(Function stmt);
     R visitPrintStmt(Print stmt);
@@ -23,8 +45,47 @@ abstract class Stmt {
     R visitVarStmt(Var stmt);
     R visitReassignStmt(Reassign stmt);
  }
-static class If extends Stmt {
-  If(Expr condition, List<Stmt> thenBranches, List<Stmt> elseBranches) {
+
+ final int kind;
+ // first and last source line, -1 for a node that was not parsed from the source
+ int line = -1;
+ int endLine = -1;
+ private int cachedHash = 0;
+ // the bit of the statement in a Coverage, -1 when it has none
+ int coverageIndex = -1;
+
+ Stmt(int kind) {
+    this.kind = kind;
+  }
+
+ abstract <R> R accept(Visitor<R> visitor);
+
+ // the syntax fields against the ones of a node of the same kind
+ abstract boolean sameAs(Stmt node);
+ abstract int structuralHash();
+
+ // Structural: nodes with equal syntax are equal wherever they are in the source.
+ // The hash is computed once, the syntax of a node never changes.
+ @Override
+ public final boolean equals(Object other) {
+    if(this == other) return true;
+    return other instanceof Stmt that && kind == that.kind && hashCode() == that.hashCode() && sameAs(that);
+  }
+
+ @Override
+ public final int hashCode() {
+    int hash = cachedHash;
+    if(hash == 0) {
+      hash = structuralHash();
+      if(hash == 0) hash = 1;
+      cachedHash = hash;
+    }
+    return hash;
+  }
+
+static final class If extends Stmt {
+  If(Expr condition, Stmt[] thenBranches, Stmt[] elseBranches) {
+    super(IF);
     this.condition = condition;
     this.thenBranches = thenBranches;
     this.elseBranches = elseBranches;
@@ -35,15 +96,33 @@ static class If extends Stmt {
     return visitor.visitIfStmt(this);
   }
 
+ @Override
+ boolean sameAs(Stmt node) {
+    If that = (If) node;
+    return Objects.equals(condition, that.condition)
+        && Arrays.equals(thenBranches, that.thenBranches)
+        && Arrays.equals(elseBranches, that.elseBranches);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Objects.hashCode(condition);
+    hash = 31 * hash + Arrays.hashCode(thenBranches);
+    hash = 31 * hash + Arrays.hashCode(elseBranches);
+    return hash;
+  }
+
   final Expr condition;
-  final List<Stmt> thenBranches;
-  final List<Stmt> elseBranches;
+  final Stmt[] thenBranches;
+  final Stmt[] elseBranches;
 }
-static class While extends Stmt {
-  While(Expr condition, List<Stmt> body, Stmt initStmt) {
+static final class While extends Stmt {
+  While(Token keyword, Expr condition, Stmt[] body) {
+    super(WHILE);
+    this.keyword = keyword;
     this.condition = condition;
     this.body = body;
-    this.initStmt = initStmt;
   }
 
  @Override
@@ -51,12 +130,134 @@ static class While extends Stmt {
     return visitor.visitWhileStmt(this);
   }
 
+ @Override
+ boolean sameAs(Stmt node) {
+    While that = (While) node;
+    return Expr.same(keyword, that.keyword)
+        && Objects.equals(condition, that.condition)
+        && Arrays.equals(body, that.body);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(keyword);
+    hash = 31 * hash + Objects.hashCode(condition);
+    hash = 31 * hash + Arrays.hashCode(body);
+    return hash;
+  }
+
+  final Token keyword;
   final Expr condition;
-  final List<Stmt> body;
-  final Stmt initStmt;
+  final Stmt[] body;
+
+  // filled in by the Resolver and at runtime, not part of the syntax
+  boolean flatBody;
+  int memoSlots;
+  int iterationMemo;
+}
+static final class For extends Stmt {
+  For(Token keyword, Stmt initializer, Expr condition, Expr increment, Stmt[] body) {
+    super(FOR);
+    this.keyword = keyword;
+    this.initializer = initializer;
+    this.condition = condition;
+    this.increment = increment;
+    this.body = body;
+  }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+    return visitor.visitForStmt(this);
+  }
+
+ @Override
+ boolean sameAs(Stmt node) {
+    For that = (For) node;
+    return Expr.same(keyword, that.keyword)
+        && Objects.equals(initializer, that.initializer)
+        && Objects.equals(condition, that.condition)
+        && Objects.equals(increment, that.increment)
+        && Arrays.equals(body, that.body);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(keyword);
+    hash = 31 * hash + Objects.hashCode(initializer);
+    hash = 31 * hash + Objects.hashCode(condition);
+    hash = 31 * hash + Objects.hashCode(increment);
+    hash = 31 * hash + Arrays.hashCode(body);
+    return hash;
+  }
+
+  final Token keyword;
+  final Stmt initializer;
+  final Expr condition;
+  final Expr increment;
+  final Stmt[] body;
+
+  // filled in by the Resolver and at runtime, not part of the syntax
+  boolean flatBody;
+  int memoSlots;
+  int iterationMemo;
+}
+static final class Break extends Stmt {
+  Break(Token keyword) {
+    super(BREAK);
+    this.keyword = keyword;
+  }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+    return visitor.visitBreakStmt(this);
+  }
+
+ @Override
+ boolean sameAs(Stmt node) {
+    Break that = (Break) node;
+    return Expr.same(keyword, that.keyword);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(keyword);
+    return hash;
+  }
+
+  final Token keyword;
+}
+static final class Continue extends Stmt {
+  Continue(Token keyword) {
+    super(CONTINUE);
+    this.keyword = keyword;
+  }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+    return visitor.visitContinueStmt(this);
+  }
+
+ @Override
+ boolean sameAs(Stmt node) {
+    Continue that = (Continue) node;
+    return Expr.same(keyword, that.keyword);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(keyword);
+    return hash;
+  }
+
+  final Token keyword;
 }
-static class Block extends Stmt {
-  Block(List<Stmt> statements) {
+static final class Block extends Stmt {
+  Block(Stmt[] statements) {
+    super(BLOCK);
     this.statements = statements;
   }
 
@@ -65,10 +266,62 @@ static class Block extends Stmt {
     return visitor.visitBlockStmt(this);
   }
 
-  final List<Stmt> statements;
+ @Override
+ boolean sameAs(Stmt node) {
+    Block that = (Block) node;
+    return Arrays.equals(statements, that.statements);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Arrays.hashCode(statements);
+    return hash;
+  }
+
+  final Stmt[] statements;
+}
+static final class Class extends Stmt {
+  Class(Token name, Expr.Variable superclass, Stmt.Function[] methods) {
+    super(CLASS);
+    this.name = name;
+    this.superclass = superclass;
+    this.methods = methods;
+  }
+
+ @Override
+ <R> R accept(Visitor<R> visitor) {
+    return visitor.visitClassStmt(this);
+  }
+
+ @Override
+ boolean sameAs(Stmt node) {
+    Class that = (Class) node;
+    return Expr.same(name, that.name)
+        && Objects.equals(superclass, that.superclass)
+        && Arrays.equals(methods, that.methods);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(name);
+    hash = 31 * hash + Objects.hashCode(superclass);
+    hash = 31 * hash + Arrays.hashCode(methods);
+    return hash;
+  }
+
+  final Token name;
+  final Expr.Variable superclass;
+  final Stmt.Function[] methods;
+
+  // filled in by the Resolver and at runtime, not part of the syntax
+  boolean boxed;
+  int global = -1;
 }
-static class Expression extends Stmt {
+static final class Expression extends Stmt {
   Expression(Expr expression) {
+    super(EXPRESSION);
     this.expression = expression;
   }
 
@@ -77,10 +330,24 @@ static class Expression extends Stmt {
     return visitor.visitExpressionStmt(this);
   }
 
+ @Override
+ boolean sameAs(Stmt node) {
+    Expression that = (Expression) node;
+    return Objects.equals(expression, that.expression);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Objects.hashCode(expression);
+    return hash;
+  }
+
   final Expr expression;
 }
-static class Function extends Stmt {
-  Function(Token name, List<Token> params, List<Stmt> body) {
+static final class Function extends Stmt {
+  Function(Token name, Token[] params, Stmt[] body) {
+    super(FUNCTION);
     this.name = name;
     this.params = params;
     this.body = body;
@@ -91,12 +358,40 @@ static class Function extends Stmt {
     return visitor.visitFunctionStmt(this);
   }
 
+ @Override
+ boolean sameAs(Stmt node) {
+    Function that = (Function) node;
+    return Expr.same(name, that.name)
+        && Expr.same(params, that.params)
+        && Arrays.equals(body, that.body);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(name);
+    hash = 31 * hash + Expr.hash(params);
+    hash = 31 * hash + Arrays.hashCode(body);
+    return hash;
+  }
+
   final Token name;
-  final List<Token> params;
-  final List<Stmt> body;
+  final Token[] params;
+  final Stmt[] body;
+
+  // filled in by the Resolver and at runtime, not part of the syntax
+  int hotness;
+  boolean interpretOnly;
+  CompiledFunction compiled;
+  List<Token> captures;
+  boolean boxed;
+  boolean[] boxedParams;
+  int global = -1;
+  int frameSlots = -1;
 }
-static class Print extends Stmt {
+static final class Print extends Stmt {
   Print(Expr expression) {
+    super(PRINT);
     this.expression = expression;
   }
 
@@ -105,10 +400,24 @@ static class Print extends Stmt {
     return visitor.visitPrintStmt(this);
   }
 
+ @Override
+ boolean sameAs(Stmt node) {
+    Print that = (Print) node;
+    return Objects.equals(expression, that.expression);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Objects.hashCode(expression);
+    return hash;
+  }
+
   final Expr expression;
 }
-static class Return extends Stmt {
+static final class Return extends Stmt {
   Return(Token keyword, Expr value) {
+    super(RETURN);
     this.keyword = keyword;
     this.value = value;
   }
@@ -118,11 +427,27 @@ static class Return extends Stmt {
     return visitor.visitReturnStmt(this);
   }
 
+ @Override
+ boolean sameAs(Stmt node) {
+    Return that = (Return) node;
+    return Expr.same(keyword, that.keyword)
+        && Objects.equals(value, that.value);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(keyword);
+    hash = 31 * hash + Objects.hashCode(value);
+    return hash;
+  }
+
   final Token keyword;
   final Expr value;
 }
-static class Var extends Stmt {
+static final class Var extends Stmt {
   Var(Token name, Expr initializer) {
+    super(VAR);
     this.name = name;
     this.initializer = initializer;
   }
@@ -132,11 +457,32 @@ static class Var extends Stmt {
     return visitor.visitVarStmt(this);
   }
 
+ @Override
+ boolean sameAs(Stmt node) {
+    Var that = (Var) node;
+    return Expr.same(name, that.name)
+        && Objects.equals(initializer, that.initializer);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(name);
+    hash = 31 * hash + Objects.hashCode(initializer);
+    return hash;
+  }
+
   final Token name;
   final Expr initializer;
+
+  // filled in by the Resolver and at runtime, not part of the syntax
+  boolean boxed;
+  int global = -1;
+  int slot = -1;
 }
-static class Reassign extends Stmt {
+static final class Reassign extends Stmt {
   Reassign(Token name, Expr reInitializer) {
+    super(REASSIGN);
     this.name = name;
     this.reInitializer = reInitializer;
   }
@@ -146,9 +492,26 @@ static class Reassign extends Stmt {
     return visitor.visitReassignStmt(this);
   }
 
+ @Override
+ boolean sameAs(Stmt node) {
+    Reassign that = (Reassign) node;
+    return Expr.same(name, that.name)
+        && Objects.equals(reInitializer, that.reInitializer);
+  }
+
+ @Override
+ int structuralHash() {
+    int hash = kind;
+    hash = 31 * hash + Expr.hash(name);
+    hash = 31 * hash + Objects.hashCode(reInitializer);
+    return hash;
+  }
+
   final Token name;
   final Expr reInitializer;
-}
 
- abstract <R> R accept(Visitor<R> visitor);
+  // filled in by the Resolver and at runtime, not part of the syntax
+  int global = -1;
+  int slot = -1;
+}
 }
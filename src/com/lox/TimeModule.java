@@ -0,0 +1,59 @@
+package com.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Clocks and a micro benchmark, to time Lox code from inside a script.
+final class TimeModule {
+    private static final int MAX_ITERATIONS = 10_000_000;
+
+    private TimeModule() {}
+
+    // a monotonic clock in nanoseconds, only the difference of two readings means something
+    @LoxNative("nanoTime")
+    static double nanoTime() {
+        return System.nanoTime();
+    }
+
+    // milliseconds since the epoch
+    @LoxNative("clockMillis")
+    static double clockMillis() {
+        return System.currentTimeMillis();
+    }
+
+    // Runs fn (no arguments) a fifth of the iterations to warm up, then times every one of the
+    // iterations on its own. Prints mean, p50 and p99 in nanoseconds and returns the mean.
+    @LoxNative("bench")
+    static double bench(Interpreter interpreter, LoxCallable fn, int iterations) {
+        if(fn.arity() != 0) {
+            throw new IllegalArgumentException("Function given to bench must take no arguments");
+        }
+        if(iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("Iterations of bench must be between 1 and " + MAX_ITERATIONS);
+        }
+        Token paren = new Token(TokenType.IDENTIFIER, "bench", null, -1);
+        List<Object> none = List.of();
+        for (int i = 0; i < Math.max(1, iterations / 5); ++i) {
+            interpreter.call(fn, none, paren);
+        }
+        long[] samples = new long[iterations];
+        long total = 0;
+        for (int i = 0; i < iterations; ++i) {
+            long start = System.nanoTime();
+            interpreter.call(fn, none, paren);
+            samples[i] = System.nanoTime() - start;
+            total += samples[i];
+        }
+        Arrays.sort(samples);
+        double mean = (double) total / iterations;
+        interpreter.out.println("bench " + fn + ": " + iterations + " iterations, mean " + Math.round(mean)
+                + " ns, p50 " + percentile(samples, 50) + " ns, p99 " + percentile(samples, 99) + " ns");
+        return mean;
+    }
+
+    // nearest rank percentile of sorted samples
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
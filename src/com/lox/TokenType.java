@@ -16,7 +16,7 @@ enum TokenType
     IDENTIFIER,STRING, NUMBER,
 
     //Keywords
-    AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL,
+    AND, BREAK, CLASS, CONTINUE, ELSE, FALSE, FUN, FOR, IF, NIL,
     OR, PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
 
     EOF
@@ -0,0 +1,354 @@
+package com.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+    Flow sensitive type inference over the resolved AST, run after the Resolver.
+    Every expression gets a type in Expr.type: NUMBER or STRING when its value is that on every
+    evaluation that finishes, UNKNOWN otherwise. The Interpreter skips the operand checks of an
+    operator whose operands are known numbers.
+    The types of the local variables are followed through the statements of each function:
+    an assignment sets the type, branches merge the types of their ends and a loop starts from
+    the types its body can leave behind (found by running over it until nothing changes).
+    Only locals nothing else can touch are followed: globals and the variables of enclosing
+    functions are UNKNOWN, and so are the boxed locals (a closure assigns them, see Resolver).
+    A node analysed several times (a loop body, a memo or an inlined body used in many places)
+    keeps the merge of all its types.
+*/
+class TypeInference {
+    static final int UNKNOWN = 0;
+    static final int NUMBER = 1;
+    static final int STRING = 2;
+
+    // a local variable, not followed when it is boxed
+    private static final class Local {
+        final boolean followed;
+
+        Local(boolean followed) {
+            this.followed = followed;
+        }
+    }
+
+    // a loop being analysed and the types its body assigns to the locals around it
+    private static final class Loop {
+        // the scopes around the loop
+        final int depth;
+        final Map<Local, Integer> writes = new HashMap<>();
+
+        Loop(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    private List<Map<String, Local>> scopes = new ArrayList<>();
+    // the type of every followed local at the point being analysed, UNKNOWN when missing
+    private Map<Local, Integer> state = new HashMap<>();
+    private List<Loop> loops = new ArrayList<>();
+    // the argument types of the inlined bodies being analysed, the innermost first
+    private final Deque<int[]> arguments = new ArrayDeque<>();
+    // the nodes analysed already, by identity: equal nodes in different places differ in type
+    private final Set<Expr> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    // the expressions of the statements, for --dump-types
+    private final List<Expr> roots = new ArrayList<>();
+
+    void infer(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            statement(statement);
+        }
+    }
+
+    // the statement level expressions with their types
+    void dump(PrintStream out) {
+        AstPrinter printer = new AstPrinter();
+        for(Expr root : roots) {
+            out.println("[line " + root.line + "] " + printer.print(root));
+        }
+    }
+
+    static int merge(int a, int b) {
+        return a == b ? a : UNKNOWN;
+    }
+
+    // the name of a known type, null for UNKNOWN
+    static String describe(int type) {
+        switch (type) {
+            case NUMBER: return "number";
+            case STRING: return "string";
+            default: return null;
+        }
+    }
+
+    private void declare(Token name, boolean boxed, int type) {
+        if(scopes.isEmpty()) return;
+        Local local = new Local(!boxed);
+        scopes.getLast().put(name.lexeme, local);
+        if(local.followed) state.put(local, type);
+    }
+
+    private int read(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; --i) {
+            Local local = scopes.get(i).get(name.lexeme);
+            if(local == null) continue;
+            return local.followed ? state.getOrDefault(local, UNKNOWN) : UNKNOWN;
+        }
+        return UNKNOWN;
+    }
+
+    private void assign(Token name, int type) {
+        for (int i = scopes.size() - 1; i >= 0; --i) {
+            Local local = scopes.get(i).get(name.lexeme);
+            if(local == null) continue;
+            if(!local.followed) return;
+            state.put(local, type);
+            for(Loop loop : loops) {
+                if(i < loop.depth) loop.writes.merge(local, type, TypeInference::merge);
+            }
+            return;
+        }
+    }
+
+    // the types at the end of either of two paths
+    private static Map<Local, Integer> join(Map<Local, Integer> a, Map<Local, Integer> b) {
+        Map<Local, Integer> joined = new HashMap<>();
+        for(Map.Entry<Local, Integer> entry : a.entrySet()) {
+            Integer other = b.get(entry.getKey());
+            if(other != null) joined.put(entry.getKey(), merge(entry.getValue(), other));
+        }
+        return joined;
+    }
+
+    private void block(Stmt[] statements) {
+        scopes.add(new HashMap<>());
+        for(Stmt statement : statements) {
+            statement(statement);
+        }
+        scopes.removeLast();
+    }
+
+    private void statement(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.IF: {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                root(ifStmt.condition);
+                Map<Local, Integer> before = new HashMap<>(state);
+                block(ifStmt.thenBranches);
+                Map<Local, Integer> then = state;
+                state = before;
+                if(ifStmt.elseBranches != null) block(ifStmt.elseBranches);
+                state = join(then, state);
+                break;
+            }
+            case Stmt.WHILE: {
+                Stmt.While whileStmt = (Stmt.While) stmt;
+                loop(whileStmt.condition, whileStmt.body, null);
+                break;
+            }
+            case Stmt.FOR: {
+                Stmt.For forStmt = (Stmt.For) stmt;
+                // like the Resolver, only a loop with an initializer gets a scope for it
+                if(forStmt.initializer != null) {
+                    scopes.add(new HashMap<>());
+                    statement(forStmt.initializer);
+                }
+                loop(forStmt.condition, forStmt.body, forStmt.increment);
+                if(forStmt.initializer != null) scopes.removeLast();
+                break;
+            }
+            case Stmt.BLOCK:
+                block(((Stmt.Block) stmt).statements);
+                break;
+            case Stmt.CLASS: {
+                Stmt.Class classStmt = (Stmt.Class) stmt;
+                if(classStmt.superclass != null) root(classStmt.superclass);
+                declare(classStmt.name, true, UNKNOWN);
+                for(Stmt.Function method : classStmt.methods) {
+                    function(method);
+                }
+                break;
+            }
+            case Stmt.FUNCTION: {
+                Stmt.Function function = (Stmt.Function) stmt;
+                declare(function.name, true, UNKNOWN);
+                function(function);
+                break;
+            }
+            case Stmt.EXPRESSION:
+                root(((Stmt.Expression) stmt).expression);
+                break;
+            case Stmt.PRINT:
+                root(((Stmt.Print) stmt).expression);
+                break;
+            case Stmt.RETURN:
+                if(((Stmt.Return) stmt).value != null) root(((Stmt.Return) stmt).value);
+                break;
+            case Stmt.VAR: {
+                Stmt.Var var = (Stmt.Var) stmt;
+                int type = var.initializer == null ? UNKNOWN : root(var.initializer);
+                declare(var.name, var.boxed, type);
+                break;
+            }
+            case Stmt.REASSIGN: {
+                Stmt.Reassign reassign = (Stmt.Reassign) stmt;
+                int type = reassign.reInitializer == null ? UNKNOWN : root(reassign.reInitializer);
+                assign(reassign.name, type);
+                break;
+            }
+        }
+    }
+
+    // a function starts with nothing known, its parameters and the names around it are UNKNOWN
+    private void function(Stmt.Function function) {
+        List<Map<String, Local>> outerScopes = scopes;
+        Map<Local, Integer> outerState = state;
+        List<Loop> outerLoops = loops;
+        scopes = new ArrayList<>();
+        state = new HashMap<>();
+        loops = new ArrayList<>();
+        scopes.add(new HashMap<>());
+        for (int i = 0; i < function.params.length; ++i) {
+            declare(function.params[i], function.boxedParams != null && function.boxedParams[i], UNKNOWN);
+        }
+        for(Stmt statement : function.body) {
+            statement(statement);
+        }
+        scopes = outerScopes;
+        state = outerState;
+        loops = outerLoops;
+    }
+
+    // The body is analysed from the types at the start of an iteration until they are stable:
+    // the types before the loop merged with everything the loop assigns to the locals around
+    // it. Those are also the types after the loop, where the condition or a break left it.
+    private void loop(Expr condition, Stmt[] body, Expr increment) {
+        Map<Local, Integer> before = state;
+        Loop loop = new Loop(scopes.size());
+        loops.add(loop);
+        Map<Local, Integer> start;
+        while (true) {
+            start = new HashMap<>(before);
+            for(Map.Entry<Local, Integer> write : loop.writes.entrySet()) {
+                start.merge(write.getKey(), write.getValue(), TypeInference::merge);
+            }
+            Map<Local, Integer> writes = new HashMap<>(loop.writes);
+            state = new HashMap<>(start);
+            if(condition != null) root(condition);
+            block(body);
+            if(increment != null) root(increment);
+            if(loop.writes.equals(writes)) break;
+        }
+        loops.removeLast();
+        state = start;
+    }
+
+    private int root(Expr expr) {
+        if(!seen.contains(expr)) roots.add(expr);
+        return expression(expr);
+    }
+
+    // the type of the expression here, the node keeps the merge with its other types
+    private int expression(Expr expr) {
+        int type = infer(expr);
+        if(seen.add(expr)) {
+            expr.type = type;
+        } else {
+            expr.type = merge(expr.type, type);
+        }
+        return type;
+    }
+
+    private int infer(Expr expr) {
+        switch (expr.kind) {
+            case Expr.ASSIGN: {
+                Expr.Assign assign = (Expr.Assign) expr;
+                int type = expression(assign.value);
+                assign(assign.name, type);
+                return type;
+            }
+            case Expr.BINARY: {
+                Expr.Binary binary = (Expr.Binary) expr;
+                int left = expression(binary.left);
+                int right = expression(binary.right);
+                switch (binary.operator.type) {
+                    case TokenType.PLUS:
+                        if(left == NUMBER && right == NUMBER) return NUMBER;
+                        // a string with anything else is a string or an error
+                        if(left == STRING || right == STRING) return STRING;
+                        return UNKNOWN;
+                    case TokenType.MINUS:
+                    case TokenType.STAR:
+                    case TokenType.SLASH:
+                        return NUMBER;
+                    default:
+                        return UNKNOWN;
+                }
+            }
+            case Expr.CALL: {
+                Expr.Call call = (Expr.Call) expr;
+                expression(call.callee);
+                for(Expr argument : call.arguments) expression(argument);
+                return UNKNOWN;
+            }
+            case Expr.GET:
+                expression(((Expr.Get) expr).object);
+                return UNKNOWN;
+            case Expr.GROUPING:
+                return expression(((Expr.Grouping) expr).expression);
+            case Expr.LITERAL: {
+                Object value = ((Expr.Literal) expr).value;
+                if(value instanceof Double) return NUMBER;
+                if(value instanceof String) return STRING;
+                return UNKNOWN;
+            }
+            case Expr.LOGICAL: {
+                // the value of one of the two, the right one is not always evaluated
+                Expr.Logical logical = (Expr.Logical) expr;
+                int left = expression(logical.left);
+                Map<Local, Integer> before = new HashMap<>(state);
+                int right = expression(logical.right);
+                state = join(before, state);
+                return merge(left, right);
+            }
+            case Expr.SET: {
+                Expr.Set set = (Expr.Set) expr;
+                expression(set.object);
+                return expression(set.value);
+            }
+            case Expr.UNARY: {
+                Expr.Unary unary = (Expr.Unary) expr;
+                expression(unary.right);
+                return unary.operator.type == TokenType.MINUS ? NUMBER : UNKNOWN;
+            }
+            case Expr.VARIABLE:
+                return read(((Expr.Variable) expr).name);
+            case Expr.MEMO:
+                return expression(((Expr.Memo) expr).expression);
+            case Expr.INLINE: {
+                // the body runs with the types of the arguments, but a callee that is not the
+                // inlined function makes it a call
+                Expr.Inline inline = (Expr.Inline) expr;
+                expression(inline.callee);
+                int[] types = new int[inline.arguments.length];
+                for (int i = 0; i < types.length; ++i) {
+                    types[i] = expression(inline.arguments[i]);
+                }
+                arguments.push(types);
+                expression(inline.body);
+                arguments.pop();
+                return UNKNOWN;
+            }
+            case Expr.ARGUMENT:
+                return arguments.isEmpty() ? UNKNOWN : arguments.peek()[((Expr.Argument) expr).index];
+            default:
+                return UNKNOWN;
+        }
+    }
+}
@@ -5,6 +5,14 @@ import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 
+/*
+    Generates Expr.java and Stmt.java, bin/jlox runs it whenever this file changed.
+    A type is "Name : syntax fields | annotation fields". The syntax fields are final, set by
+    the constructor and make up the structural equals/hashCode of the node. The annotation
+    fields are filled in later (Resolver, caches) and don't take part in it.
+    Node classes are final and the base class is sealed, children lists are arrays, and every
+    node has a kind (its index in the list of types) to switch on and an optional line span.
+*/
 public class GenerateAst {
     public static void main(String[] args) throws IOException {
         if(args.length != 1) {
@@ -14,26 +22,40 @@ public class GenerateAst {
         String outputDir = args[0];
 
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign : Token name, Expr value",
+                "Assign : Token name, Expr value | int global = -1, int slot = -1",
                 "Binary : Expr left, Token operator, Expr right",
-                "Call : Expr callee, Token paren, List<Expr> arguments",
+                "Call : Expr callee, Token paren, Expr[] arguments",
+                "Get : Expr object, Token name | Shape cachedShape, int cachedSlot, LoxFunction cachedMethod",
                 "Grouping : Expr expression",
                 "Literal : Object value",
                 "Logical : Expr left, Token operator, Expr right",
+                "Set : Expr object, Token name, Expr value | Shape cachedShape, Shape cachedNext, int cachedSlot",
+                "Super : Token keyword, Token method | LoxClass cachedClass, LoxFunction cachedMethod",
+                "This : Token keyword",
                 "Unary : Token operator, Expr right",
-                "Variable : Token name"
+                "Variable : Token name | int global = -1, int slot = -1",
+                "Memo : Expr expression | Stmt loop, int slot",
+                "Inline : Expr callee, Token paren, Expr[] arguments, Expr body | Stmt.Function function",
+                "Argument : Token name, int index"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "If : Expr condition, List<Stmt> thenBranches, List<Stmt> elseBranches",
-                "While : Expr condition, List<Stmt> body, Stmt initStmt",
-                "Block : List<Stmt> statements",
+                "If : Expr condition, Stmt[] thenBranches, Stmt[] elseBranches",
+                "While : Token keyword, Expr condition, Stmt[] body | boolean flatBody, int memoSlots, int iterationMemo",
+                "For : Token keyword, Stmt initializer, Expr condition, Expr increment, Stmt[] body"
+                        + " | boolean flatBody, int memoSlots, int iterationMemo",
+                "Break : Token keyword",
+                "Continue : Token keyword",
+                "Block : Stmt[] statements",
+                "Class : Token name, Expr.Variable superclass, Stmt.Function[] methods | boolean boxed, int global = -1",
                 "Expression : Expr expression",
-                "Function : Token name, List<Token> params, List<Stmt> body",
+                "Function : Token name, Token[] params, Stmt[] body"
+                        + " | int hotness, boolean interpretOnly, CompiledFunction compiled,"
+                        + " List<Token> captures, boolean boxed, boolean[] boxedParams, int global = -1, int frameSlots = -1",
                 "Print  : Expr expression",
                 "Return : Token keyword, Expr value",
-                "Var : Token name, Expr initializer",
-                "Reassign : Token name, Expr reInitializer"
+                "Var : Token name, Expr initializer | boolean boxed, int global = -1, int slot = -1",
+                "Reassign : Token name, Expr reInitializer | int global = -1, int slot = -1"
         ));
     }
     private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
@@ -49,22 +71,42 @@ public class GenerateAst {
                     actual implementation of the classes itself.
                     Any calling class should only implement the Visitor Interface and define how the
                     visitor interface is going to work for them.
+                    The node classes are final, an engine can also switch on kind instead of visiting.
                 */
                 """);
-        writer.println("abstract class " + baseName + " { ");
+        writer.println("import java.util.Arrays;");
+        if(types.stream().anyMatch(type -> type.contains("List<"))) writer.println("import java.util.List;");
+        writer.println("import java.util.Objects;");
+        writer.println();
+        writer.println("abstract sealed class " + baseName + " {");
+        defineKinds(writer, types);
         defineVisitor(writer, baseName, types);
+        defineBase(writer, baseName);
         //All the AST Sub Classes
         for(String type : types) {
             String className = type.split(":")[0].trim();
             String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            // fields after '|' are annotations the runtime fills in, they are not in the constructor
+            String annotations = null;
+            if(fields.contains("|")) {
+                annotations = fields.split("\\|")[1].trim();
+                fields = fields.split("\\|")[0].trim();
+            }
+            defineType(writer, baseName, className, fields, annotations);
         }
-        writer.println();
-        writer.println(" abstract <R> R accept(Visitor<R> visitor);");
         writer.println("}");
         writer.close();
     }
 
+    private static void defineKinds(PrintWriter writer, List<String> types) {
+        writer.println(" // the kind of every node class");
+        for (int i = 0; i < types.size(); ++i) {
+            String typeName = types.get(i).split(":")[0].trim();
+            writer.println(" static final int " + typeName.toUpperCase() + " = " + i + ";");
+        }
+        writer.println();
+    }
+
     private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
         writer.println(" interface Visitor<R> {");
         for(String type : types) {
@@ -74,10 +116,90 @@ public class GenerateAst {
         writer.println(" }");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fields) throws IOException {
-        writer.println("static class " + className + " extends "+ baseName + " {");
+    private static void defineBase(PrintWriter writer, String baseName) {
+        writer.println();
+        writer.println(" final int kind;");
+        writer.println(" // first and last source line, -1 for a node that was not parsed from the source");
+        writer.println(" int line = -1;");
+        writer.println(" int endLine = -1;");
+        writer.println(" private int cachedHash = 0;");
+        if(baseName.equals("Expr")) {
+            writer.println(" // what TypeInference proved about the value, UNKNOWN when nothing");
+            writer.println(" int type = TypeInference.UNKNOWN;");
+        } else {
+            writer.println(" // the bit of the statement in a Coverage, -1 when it has none");
+            writer.println(" int coverageIndex = -1;");
+        }
+        writer.println();
+        writer.println(" " + baseName + "(int kind) {");
+        writer.println("    this.kind = kind;");
+        writer.println("  }");
+        writer.println();
+        writer.println(" abstract <R> R accept(Visitor<R> visitor);");
+        writer.println();
+        writer.println(" // the syntax fields against the ones of a node of the same kind");
+        writer.println(" abstract boolean sameAs(" + baseName + " node);");
+        writer.println(" abstract int structuralHash();");
+        writer.println();
+        writer.println(" // Structural: nodes with equal syntax are equal wherever they are in the source.");
+        writer.println(" // The hash is computed once, the syntax of a node never changes.");
+        writer.println(" @Override");
+        writer.println(" public final boolean equals(Object other) {");
+        writer.println("    if(this == other) return true;");
+        writer.println("    return other instanceof " + baseName + " that && kind == that.kind"
+                + " && hashCode() == that.hashCode() && sameAs(that);");
+        writer.println("  }");
+        writer.println();
+        writer.println(" @Override");
+        writer.println(" public final int hashCode() {");
+        writer.println("    int hash = cachedHash;");
+        writer.println("    if(hash == 0) {");
+        writer.println("      hash = structuralHash();");
+        writer.println("      if(hash == 0) hash = 1;");
+        writer.println("      cachedHash = hash;");
+        writer.println("    }");
+        writer.println("    return hash;");
+        writer.println("  }");
+        if(baseName.equals("Expr")) {
+            // shared with Stmt
+            writer.println();
+            writer.println(" // tokens are compared by what they say, not by where they are");
+            writer.println(" static boolean same(Token a, Token b) {");
+            writer.println("    if(a == null || b == null) return a == b;");
+            writer.println("    return a.type == b.type && a.lexeme.equals(b.lexeme) && Objects.equals(a.literal, b.literal);");
+            writer.println("  }");
+            writer.println();
+            writer.println(" static boolean same(Token[] a, Token[] b) {");
+            writer.println("    if(a == null || b == null) return a == b;");
+            writer.println("    if(a.length != b.length) return false;");
+            writer.println("    for (int i = 0; i < a.length; ++i) {");
+            writer.println("      if(!same(a[i], b[i])) return false;");
+            writer.println("    }");
+            writer.println("    return true;");
+            writer.println("  }");
+            writer.println();
+            writer.println(" static int hash(Token token) {");
+            writer.println("    return token == null ? 0 : 31 * token.type.ordinal() + token.lexeme.hashCode();");
+            writer.println("  }");
+            writer.println();
+            writer.println(" static int hash(Token[] tokens) {");
+            writer.println("    if(tokens == null) return 0;");
+            writer.println("    int hash = 1;");
+            writer.println("    for(Token token : tokens) {");
+            writer.println("      hash = 31 * hash + hash(token);");
+            writer.println("    }");
+            writer.println("    return hash;");
+            writer.println("  }");
+        }
+        writer.println();
+    }
+
+    private static void defineType(PrintWriter writer, String baseName, String className, String fields,
+                                   String annotations) throws IOException {
+        writer.println("static final class " + className + " extends "+ baseName + " {");
         //Constructor
         writer.println("  " + className+ "(" + fields + ") " +  "{");
+        writer.println("    super(" + className.toUpperCase() + ");");
         String[] fieldList = fields.split(", ");
         for(String field : fieldList) {
             String name = field.split(" ")[1].trim();
@@ -90,11 +212,54 @@ public class GenerateAst {
         writer.println(" <R> R accept(Visitor<R> visitor) {");
         writer.println("    return visitor.visit" + className + baseName + "(this);");
         writer.println("  }");
+
+        writer.println();
+        writer.println(" @Override");
+        writer.println(" boolean sameAs(" + baseName + " node) {");
+        writer.println("    " + className + " that = (" + className + ") node;");
+        StringBuilder same = new StringBuilder();
+        for(String field : fieldList) {
+            String type = field.split(" ")[0].trim();
+            String name = field.split(" ")[1].trim();
+            if(same.length() > 0) same.append("\n        && ");
+            if(type.equals("Token") || type.equals("Token[]")) {
+                same.append("Expr.same(").append(name).append(", that.").append(name).append(")");
+            } else if(type.endsWith("[]")) {
+                same.append("Arrays.equals(").append(name).append(", that.").append(name).append(")");
+            } else {
+                same.append("Objects.equals(").append(name).append(", that.").append(name).append(")");
+            }
+        }
+        writer.println("    return " + same + ";");
+        writer.println("  }");
+
+        writer.println();
+        writer.println(" @Override");
+        writer.println(" int structuralHash() {");
+        writer.println("    int hash = kind;");
+        for(String field : fieldList) {
+            String type = field.split(" ")[0].trim();
+            String name = field.split(" ")[1].trim();
+            String hash;
+            if(type.equals("Token") || type.equals("Token[]")) hash = "Expr.hash(" + name + ")";
+            else if(type.endsWith("[]")) hash = "Arrays.hashCode(" + name + ")";
+            else hash = "Objects.hashCode(" + name + ")";
+            writer.println("    hash = 31 * hash + " + hash + ";");
+        }
+        writer.println("    return hash;");
+        writer.println("  }");
         //Fields
         writer.println();
         for(String field : fieldList) {
             writer.println("  final " + field + ";");
         }
+        if(annotations != null) {
+            writer.println();
+            writer.println("  // filled in by the Resolver and at runtime, not part of the syntax");
+            for(String annotation : annotations.split(", ")) {
+                writer.println("  " + annotation + ";");
+            }
+        }
         writer.println("}");
     }
 }